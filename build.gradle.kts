@@ -86,6 +86,7 @@ dependencies {
     compile("org.jetbrains.exposed:exposed:0.10.5") { isTransitive = false }
     compile("joda-time:joda-time:2.10")
     compile("com.zaxxer:HikariCP:3.2.0")
+    compile("com.h2database:h2:1.4.197")
     compile("ch.qos.logback:logback-classic:1.2.3") { isTransitive = false }
     compile("ch.qos.logback:logback-core:1.2.3") { isTransitive = false }
 
@@ -96,6 +97,11 @@ dependencies {
     compile("com.fasterxml.jackson.module:jackson-module-kotlin:$jacksonVersion") { isTransitive = false }
 }
 
+// tests run against the libraries that the server provides
+listOf("testCompileClasspath", "testRuntimeClasspath").forEach {
+    c.getByName(it).extendsFrom(c.provided, c.kotlinStd)
+}
+
 tasks {
     removeIf { it is ShadowJar }
 
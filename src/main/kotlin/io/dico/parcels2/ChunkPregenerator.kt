@@ -0,0 +1,146 @@
+package io.dico.parcels2
+
+import com.fasterxml.jackson.module.kotlin.readValue
+import io.dico.parcels2.options.optionsMapper
+import io.dico.parcels2.util.ext.tryCreate
+import io.dico.parcels2.util.math.Vec2i
+import io.dico.parcels2.util.math.walkInSpiral
+import java.io.File
+
+private const val SAVE_INTERVAL = 256
+
+/**
+ * Generates and saves every chunk within the axis limit of a parcel world, in spiral order from the center.
+ * Chunks are generated by a job on the [io.dico.parcels2.JobDispatcher], such that it respects the tick budget
+ * and generates at most [io.dico.parcels2.options.Options.pregenChunksPerTick] chunks each tick.
+ *
+ * The position in the spiral is saved periodically and when stopped, so that it can be resumed later.
+ */
+class ChunkPregenerator(val plugin: ParcelsPlugin) {
+    private val progressFile = File(plugin.dataFolder, "pregen-progress.yml")
+    private val savedProgress: MutableMap<String, Int> by lazy { loadProgress() }
+    private val tasks = mutableMapOf<String, Task>()
+
+    inner class Task(val world: ParcelWorld, startIndex: Int, val chunkCount: Int) {
+        lateinit var job: Job; internal set
+        var index = startIndex; internal set
+        var generatedChunks = 0; internal set
+        internal var stopRequested = false
+
+        val chunksPerSecond: Double
+            get() = job.elapsedTime.let { if (it <= 0) 0.0 else generatedChunks * 1000.0 / it }
+    }
+
+    fun isRunning(world: ParcelWorld) = world.name in tasks
+
+    /**
+     * Starts pre-generating chunks of the given [world], resuming from the saved position unless [restart] is true.
+     * Returns null if chunks of the world are already being generated.
+     */
+    fun start(world: ParcelWorld, restart: Boolean = false): Task? {
+        if (isRunning(world)) return null
+
+        val (min, max) = getChunkBounds(world)
+        val chunkCount = (max.x - min.x + 1) * (max.z - min.z + 1)
+        val startIndex = if (restart) 0 else savedProgress[world.name]?.takeIf { it in 0 until chunkCount } ?: 0
+        val task = Task(world, startIndex, chunkCount)
+        tasks[world.name] = task
+
+        val bukkitWorld = world.world
+        task.job = plugin.jobDispatcher.dispatch {
+            val chunksPerTick = plugin.options.pregenChunksPerTick.coerceAtLeast(1)
+            var chunksThisTick = 0
+
+            for (chunk in walkChunks(min, max).drop(startIndex)) {
+                if (task.stopRequested) break
+                markSuspensionPoint()
+
+                if (!bukkitWorld.isChunkGenerated(chunk.x, chunk.z)) {
+                    if (chunksThisTick >= chunksPerTick) {
+                        suspendUntilNextTick()
+                        chunksThisTick = 0
+                    }
+
+                    val wasLoaded = bukkitWorld.isChunkLoaded(chunk.x, chunk.z)
+                    bukkitWorld.loadChunk(chunk.x, chunk.z, true)
+                    if (!wasLoaded) bukkitWorld.unloadChunk(chunk.x, chunk.z, true)
+
+                    chunksThisTick++
+                    task.generatedChunks++
+                }
+
+                task.index++
+                setProgress(task.index / chunkCount.toDouble())
+                if (task.index % SAVE_INTERVAL == 0) saveProgress(task)
+            }
+        }
+
+        task.job.onCompleted { _, _ ->
+            tasks.remove(world.name)
+            saveProgress(task)
+            logger.info("Stopped pre-generating chunks of ${world.name} at ${task.index}/$chunkCount, " +
+                "${task.generatedChunks} chunks were generated")
+        }
+
+        return task
+    }
+
+    /**
+     * Stops pre-generating chunks of the given [world] and saves the position.
+     * Returns false if chunks of the world were not being generated.
+     */
+    fun stop(world: ParcelWorld): Boolean {
+        val task = tasks[world.name] ?: return false
+        task.stopRequested = true
+        return true
+    }
+
+    /**
+     * Stops all tasks. Should be called before the job dispatcher completes its remaining jobs,
+     * as the tasks would otherwise run to completion.
+     */
+    fun stopAll() {
+        tasks.values.forEach { it.stopRequested = true }
+    }
+
+    private fun getChunkBounds(world: ParcelWorld): Pair<Vec2i, Vec2i> {
+        val axisLimit = world.options.axisLimit
+        val min = world.blockManager.getRegion(ParcelId(world.id, -axisLimit, -axisLimit)).origin
+        val max = world.blockManager.getRegion(ParcelId(world.id, axisLimit, axisLimit)).max
+        return Vec2i(min.x shr 4, min.z shr 4) to Vec2i(max.x shr 4, max.z shr 4)
+    }
+
+    /**
+     * Walks the chunks of the rectangle from [min] to [max] (inclusive) in spiral order,
+     * starting at its center. Every chunk of the rectangle is visited exactly once.
+     */
+    private fun walkChunks(min: Vec2i, max: Vec2i): Sequence<Vec2i> {
+        val centerX = (min.x + max.x) / 2
+        val centerZ = (min.z + max.z) / 2
+        val radius = maxOf(centerX - min.x, max.x - centerX, centerZ - min.z, max.z - centerZ)
+        return walkInSpiral(radius, centerX, centerZ).filter { it.x in min.x..max.x && it.z in min.z..max.z }
+    }
+
+    private fun loadProgress(): MutableMap<String, Int> {
+        if (!progressFile.exists()) return hashMapOf()
+        return try {
+            optionsMapper.readValue<HashMap<String, Int>>(progressFile)
+        } catch (ex: Exception) {
+            logger.error("Failed to read pregen progress from ${progressFile.canonicalPath}", ex)
+            hashMapOf()
+        }
+    }
+
+    private fun saveProgress(task: Task) {
+        if (task.index >= task.chunkCount) savedProgress.remove(task.world.name)
+        else savedProgress[task.world.name] = task.index
+
+        if (!progressFile.tryCreate()) return
+        try {
+            optionsMapper.writeValue(progressFile, savedProgress)
+        } catch (ex: Exception) {
+            logger.error("Failed to save pregen progress to ${progressFile.canonicalPath}", ex)
+        }
+    }
+
+}
@@ -101,6 +101,12 @@ interface JobScope : JobAndScopeMembersUnion {
      */
     suspend fun markSuspensionPoint()
 
+    /**
+     * Suspends until the next time the dispatcher resumes this job, regardless of the time it has left.
+     * Does not suspend if the job is being completed forcefully.
+     */
+    suspend fun suspendUntilNextTick()
+
     /**
      * A task should call this method to indicate its progress
      */
@@ -290,6 +296,14 @@ private class JobImpl(scope: CoroutineScope, task: JobFunction) : JobInternal {
             }
     }
 
+    override suspend fun suspendUntilNextTick() {
+        if (!completeForcefully)
+            suspendCoroutineUninterceptedOrReturn { cont: Continuation<Unit> ->
+                continuation = cont
+                COROUTINE_SUSPENDED
+            }
+    }
+
     override fun setProgress(progress: Double) {
         this._progress = progress
         val onProgressUpdate = onProgressUpdate ?: return
@@ -356,6 +370,9 @@ private class JobImpl(scope: CoroutineScope, task: JobFunction) : JobInternal {
         override suspend fun markSuspensionPoint() =
             parent.markSuspensionPoint()
 
+        override suspend fun suspendUntilNextTick() =
+            parent.suspendUntilNextTick()
+
         override val progress: Double
             get() = (parent.progress - progressStart) / portion
 
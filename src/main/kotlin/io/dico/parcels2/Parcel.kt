@@ -25,6 +25,12 @@ interface Parcel : ParcelData, Privileges {
     val hasBlockVisitors: Boolean
     val globalPrivileges: GlobalPrivileges?
 
+    /**
+     * Whether the data of this parcel was read from storage. Until it is, its owner is not known,
+     * and the parcel must be treated as claimed by someone else.
+     */
+    val isLoaded: Boolean get() = true
+
     override val keyOfOwner: PlayerProfile.Real?
         get() = owner as? PlayerProfile.Real
 
@@ -56,7 +62,7 @@ interface ParcelData : RawPrivileges {
     }
 }
 
-class ParcelDataHolder(addedMap: MutablePrivilegeMap = mutableMapOf())
+class ParcelDataHolder(addedMap: MutablePrivilegeMap = EmptyPrivilegeMap)
     : ParcelData, PrivilegesHolder(addedMap) {
     override var owner: PlayerProfile? = null
     override var lastClaimTime: DateTime? = null
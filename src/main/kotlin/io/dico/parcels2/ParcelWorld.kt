@@ -45,6 +45,12 @@ interface ParcelProvider {
 
     fun getWorldGenerator(worldName: String): ParcelGenerator?
 
+    /**
+     * Returns the parcels owned by [owner] in [world], ordered by claim time.
+     * Returns null if they cannot be known without querying storage, for example if the world loads its parcels lazily.
+     */
+    fun getOwnedParcels(owner: PlayerProfile, world: ParcelWorld): List<Parcel>?
+
     fun loadWorlds()
 
     fun acquireBlockVisitorPermit(parcelId: ParcelId, with: Permit): Boolean
@@ -100,4 +106,28 @@ interface ParcelWorld : ParcelLocator, ParcelContainer {
     val globalPrivileges: GlobalPrivilegesManager
 
     val creationTime: DateTime?
+
+    val loadState: ParcelWorldLoadState
+
+    /**
+     * Whether the data of this world is loaded. Until then, its parcels should be treated as if they can not be built on.
+     */
+    val isReady: Boolean get() = loadState == ParcelWorldLoadState.READY
+}
+
+enum class ParcelWorldLoadState {
+    /**
+     * The data of the world is waiting for other worlds to be loaded
+     */
+    PENDING,
+
+    /**
+     * The data of the world is being loaded
+     */
+    LOADING,
+
+    /**
+     * The data of the world and global privileges are loaded
+     */
+    READY
 }
@@ -11,6 +11,7 @@ import io.dico.parcels2.listener.ParcelListeners
 import io.dico.parcels2.listener.WorldEditListener
 import io.dico.parcels2.options.Options
 import io.dico.parcels2.options.optionsMapper
+import io.dico.parcels2.storage.ParcelSnapshot
 import io.dico.parcels2.storage.Storage
 import io.dico.parcels2.util.MainThreadDispatcher
 import io.dico.parcels2.util.PluginAware
@@ -18,6 +19,7 @@ import io.dico.parcels2.util.ext.tryCreate
 import io.dico.parcels2.util.isServerThread
 import io.dico.parcels2.util.scheduleRepeating
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.runBlocking
 import org.bukkit.Bukkit
 import org.bukkit.generator.ChunkGenerator
 import org.bukkit.plugin.Plugin
@@ -45,6 +47,8 @@ class ParcelsPlugin : JavaPlugin(), CoroutineScope, PluginAware {
     override val coroutineContext: CoroutineContext = MainThreadDispatcher(this)
     override val plugin: Plugin get() = this
     val jobDispatcher: JobDispatcher by lazy { BukkitJobDispatcher(this, this, options.tickJobtime) }
+    val chunkPregenerator: ChunkPregenerator by lazy { ChunkPregenerator(this) }
+    val parcelSnapshot: ParcelSnapshot by lazy { ParcelSnapshot(this, File(dataFolder, "parcels-snapshot.bin")) }
 
     override fun onEnable() {
         plogger.info("Is server thread: ${isServerThread()}")
@@ -56,6 +60,7 @@ class ParcelsPlugin : JavaPlugin(), CoroutineScope, PluginAware {
     }
 
     override fun onDisable() {
+        chunkPregenerator.stopAll()
         val hasWorkers = jobDispatcher.jobs.isNotEmpty()
         if (hasWorkers) {
             plogger.warn("Parcels is attempting to complete all ${jobDispatcher.jobs.size} remaining jobs before shutdown...")
@@ -65,6 +70,16 @@ class ParcelsPlugin : JavaPlugin(), CoroutineScope, PluginAware {
             plogger.info("Parcels has completed the remaining jobs.")
         }
 
+        if (::globalPrivileges.isInitialized && options.snapshotEnabled) {
+            parcelSnapshot.save()
+        }
+
+        if (::storage.isInitialized) {
+            // buffered changes must be written before the server stops.
+            // the wait is bounded by the drain timeout of the storage, which does not need the server thread
+            runBlocking { storage.shutdown().join() }
+        }
+
         cmdDispatcher?.unregisterFromCommandMap()
     }
 
@@ -77,8 +92,9 @@ class ParcelsPlugin : JavaPlugin(), CoroutineScope, PluginAware {
             if (!loadOptions()) return false
 
             try {
-                storage = options.storage.newInstance()
-                storage.init()
+                storage = options.storage.newInstance(dataFolder)
+                // writes that were spilled on the last shutdown are replayed by init, before any data is loaded
+                runBlocking { storage.init().await() }
             } catch (ex: Exception) {
                 plogger.error("Failed to connect to database", ex)
                 return false
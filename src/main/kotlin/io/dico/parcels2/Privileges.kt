@@ -56,6 +56,11 @@ fun Privileges.disallowEnter(key: PrivilegeKey) = changePrivilege(key, false, Pr
 
 interface GlobalPrivileges : RawPrivileges, Privileges {
     override val keyOfOwner: PlayerProfile.Real
+
+    /**
+     * Whether these privileges were read from storage. Until they are, whether a player is banned is not known.
+     */
+    val isLoaded: Boolean get() = true
 }
 
 interface GlobalPrivilegesManager {
@@ -28,8 +28,9 @@ abstract class AbstractParcelCommands(val plugin: ParcelsPlugin) : ICommandInter
 
     protected suspend fun checkParcelLimit(player: Player, world: ParcelWorld) {
         if (player.hasPermAdminManage) return
-        val numOwnedParcels = plugin.storage.getOwnedParcels(PlayerProfile(player)).await()
-            .filter { it.worldId.equals(world.id) }.size
+        val profile = PlayerProfile(player)
+        val numOwnedParcels = plugin.parcelProvider.getOwnedParcels(profile, world)?.size
+            ?: plugin.storage.getOwnedParcels(profile).await().filter { it.worldId.equals(world.id) }.size
 
         val limit = player.parcelLimit
         if (numOwnedParcels >= limit) {
@@ -2,13 +2,22 @@ package io.dico.parcels2.command
 
 import io.dico.dicore.command.CommandException
 import io.dico.dicore.command.ExecutionContext
+import io.dico.dicore.command.EMessageType
 import io.dico.dicore.command.Validate
 import io.dico.dicore.command.annotation.Cmd
+import io.dico.dicore.command.annotation.Desc
 import io.dico.dicore.command.annotation.Flag
 import io.dico.parcels2.*
 import io.dico.parcels2.command.ParcelTarget.TargetKind
 import io.dico.parcels2.defaultimpl.DefaultParcelContainer
+import io.dico.parcels2.defaultimpl.SparseParcelContainer
+import io.dico.parcels2.storage.exportStorage
+import io.dico.parcels2.storage.scheduleImport
 import io.dico.parcels2.util.ext.PERM_ADMIN_MANAGE
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+import java.io.File
 
 class CommandsAdmin(plugin: ParcelsPlugin) : AbstractParcelCommands(plugin) {
 
@@ -32,14 +41,18 @@ class CommandsAdmin(plugin: ParcelsPlugin) : AbstractParcelCommands(plugin) {
             for (world in plugin.parcelProvider.worlds.values) {
                 markSuspensionPoint()
 
-                val container = world.container as? DefaultParcelContainer
-                if (container == null) {
+                val parcels = when (val container = world.container) {
+                    is DefaultParcelContainer -> container.getAllParcels()
+                    is SparseParcelContainer -> container.getAllParcels()
+                    else -> null
+                }
+                if (parcels == null) {
                     processed += getParcelCount(world)
                     setProgress(processed / parcelCount)
                     continue
                 }
 
-                for (parcel in container.getAllParcels()) {
+                for (parcel in parcels) {
                     parcel.updateOwnerSign(force = true)
                     processed++
                     setProgress(processed / parcelCount)
@@ -92,4 +105,101 @@ class CommandsAdmin(plugin: ParcelsPlugin) : AbstractParcelCommands(plugin) {
         return null
     }
 
-}
\ No newline at end of file
+    @Cmd("resize")
+    @Desc(
+        "Changes the axis limit of this world, which is",
+        "the number of parcels between its center and edge.",
+        "Parcels outside of the new limit keep their data.",
+        shortVersion = "changes the axis limit of this world"
+    )
+    @RequireParcelPrivilege(Privilege.ADMIN)
+    fun WorldScope.cmdResize(axisLimit: Int): Any? {
+        Validate.isTrue(axisLimit >= 0, "The axis limit cannot be negative")
+        val oldAxisLimit = world.options.axisLimit
+        if (oldAxisLimit == axisLimit) err("The axis limit of this world is already $axisLimit")
+
+        world.options.axisLimit = axisLimit
+        (world.container as? DefaultParcelContainer)?.resize(axisLimit)
+
+        val saved = plugin.saveOptions()
+        return "The axis limit of ${world.name} has been changed from $oldAxisLimit to $axisLimit" +
+            if (saved) "" else ", but the options file could not be saved"
+    }
+
+    @Cmd("pregen")
+    @Desc(
+        "Generates and saves every chunk within the axis limit",
+        "of this world, starting at its center.",
+        "Resumes where it was stopped unless -restart is given.",
+        shortVersion = "pre-generates the chunks of this world"
+    )
+    @RequireParcelPrivilege(Privilege.ADMIN)
+    fun WorldScope.cmdPregen(context: ExecutionContext, @Flag restart: Boolean, @Flag stop: Boolean): Any? {
+        val pregenerator = plugin.chunkPregenerator
+        if (stop) {
+            Validate.isTrue(pregenerator.stop(world), "Chunks of this world are not being pre-generated")
+            return "Stopping pre-generation of chunks in ${world.name}, its progress will be saved"
+        }
+
+        val task = pregenerator.start(world, restart)
+            ?: err("Chunks of this world are already being pre-generated")
+
+        task.job.onProgressUpdate(1000, 5000) { progress, elapsedTime ->
+            val alt = context.getFormat(EMessageType.NUMBER)
+            val main = context.getFormat(EMessageType.INFORMATIVE)
+            context.sendMessage(
+                EMessageType.INFORMATIVE, false, "Pregen progress: $alt%.02f$main%%, $alt%d$main chunks generated, $alt%.1f$main chunks/s, $alt%.2f${main}s elapsed"
+                    .format(progress * 100, task.generatedChunks, task.chunksPerSecond, elapsedTime / 1000.0)
+            )
+        }
+        return null
+    }
+
+    @Cmd("export")
+    @Desc(
+        "Writes all parcel data, global privileges and player",
+        "names in storage to a file in the plugin folder.",
+        shortVersion = "exports storage to a file"
+    )
+    fun cmdExport(context: ExecutionContext, fileName: String?): Any? {
+        Validate.isAuthorized(context.sender, PERM_ADMIN_MANAGE)
+        val file = transferFile(fileName)
+
+        GlobalScope.launch(Dispatchers.Default) {
+            val message = try {
+                "Exported ${exportStorage(plugin.storage, file)} to ${file.name}"
+            } catch (ex: Exception) {
+                logger.error("Failed to export storage to ${file.canonicalPath}", ex)
+                "Failed to export storage: ${ex.message}"
+            }
+            plugin.launch { context.sendMessage(EMessageType.INFORMATIVE, false, message) }
+        }
+        return "Exporting storage to ${file.name}"
+    }
+
+    @Cmd("import")
+    @Desc(
+        "Writes the data in a file made by /parcel admin export",
+        "to storage when the server is restarted, before parcel",
+        "data is loaded, replacing the data of the same parcels",
+        "and the global privileges of the same owners.",
+        shortVersion = "imports a file into storage on restart"
+    )
+    fun cmdImport(context: ExecutionContext, fileName: String?, @Flag sure: Boolean): Any? {
+        Validate.isAuthorized(context.sender, PERM_ADMIN_MANAGE)
+        val file = transferFile(fileName)
+        Validate.isTrue(file.isFile, "${file.name} does not exist")
+        if (!sure) return areYouSureMessage(context)
+
+        // the parcels in memory would overwrite the imported rows, so the import runs before they are loaded
+        scheduleImport(plugin.dataFolder, file)
+        return "${file.name} will be imported into storage when the server is restarted"
+    }
+
+    private fun transferFile(fileName: String?): File {
+        val name = fileName ?: "parcels-export.bin"
+        Validate.isTrue(!name.contains('/') && !name.contains('\\'), "The file must be in the plugin folder")
+        return File(plugin.dataFolder, name)
+    }
+
+}
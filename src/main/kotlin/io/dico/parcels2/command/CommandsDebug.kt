@@ -4,11 +4,17 @@ import io.dico.dicore.Formatting
 import io.dico.dicore.command.*
 import io.dico.dicore.command.IContextFilter.Priority.PERMISSION
 import io.dico.dicore.command.annotation.Cmd
+import io.dico.dicore.command.annotation.Flag
 import io.dico.dicore.command.annotation.PreprocessArgs
 import io.dico.dicore.command.annotation.RequireParameters
 import io.dico.dicore.command.parameter.ArgumentBuffer
 import io.dico.parcels2.*
 import io.dico.parcels2.blockvisitor.RegionTraverser
+import io.dico.parcels2.options.optionsMapper
+import io.dico.parcels2.storage.StorageMetrics
+import io.dico.parcels2.storage.WriteBehindStorage
+import io.dico.parcels2.storage.backedStorage
+import io.dico.parcels2.storage.exposed.ExposedBacking
 import io.dico.parcels2.util.ext.PERM_ADMIN_MANAGE
 import io.dico.parcels2.util.ext.PERM_BAN_BYPASS
 import io.dico.parcels2.util.ext.PERM_BUILD_ANYWHERE
@@ -19,6 +25,7 @@ import org.bukkit.block.BlockFace
 import org.bukkit.block.data.Directional
 import org.bukkit.command.CommandSender
 import org.bukkit.entity.Player
+import java.io.File
 import java.util.Random
 
 class CommandsDebug(plugin: ParcelsPlugin) : AbstractParcelCommands(plugin) {
@@ -92,6 +99,44 @@ class CommandsDebug(plugin: ParcelsPlugin) : AbstractParcelCommands(plugin) {
         plugin.launch { plugin.jobDispatcher.completeAllTasks() }
     }
 
+    @Cmd("write_queue")
+    fun cmdWriteQueue(): Any? {
+        val storage = plugin.storage as? WriteBehindStorage ?: return "Changes are not buffered before they are written"
+        return "Pending parcels: ${storage.pendingParcelCount}\n" +
+            "Queued writes: ${storage.queuedWrites}, coalesced: ${storage.coalescedWrites}\n" +
+            "Flushes: ${storage.flushCount}, parcels written: ${storage.flushedParcels}, last flush: ${storage.lastFlushMillis}ms"
+    }
+
+    @Cmd("storage")
+    fun cmdStorage(@Flag export: Boolean): Any? {
+        val storage = plugin.storage.backedStorage ?: return "Storage ${plugin.storage.name} does not record metrics"
+        val metrics = storage.metrics
+        val pool = (storage.b as? ExposedBacking)?.poolStatistics
+
+        if (export) {
+            val file = File(plugin.dataFolder, "storage-metrics.yml")
+            val values = linkedMapOf<String, Any>("storage" to storage.name)
+            pool?.let { values["pool"] = it }
+            values["pending-writes"] = storage.pendingWriteCount
+            values.putAll(metrics.toMap())
+            optionsMapper.writeValue(file, values)
+            return "Exported storage metrics to ${file.name}"
+        }
+
+        return buildString {
+            append("Storage: ${storage.name}, connected: ${storage.isConnected}, write channel depth: ${metrics.writeChannelDepth.get()}, " +
+                "pending writes: ${storage.pendingWriteCount}")
+            pool?.let { append("\nPool: ${it.entries.joinToString { (key, value) -> "$key $value" }}") }
+            for (operation in metrics.all) {
+                append("\n${operation.name}: ${operation.count.get()} calls, ${operation.errors.get()} errors, ")
+                append("wait %.2fms avg %.2fms max, time %.2fms avg".format(
+                    operation.averageWaitMillis, operation.maxWaitNanos.get() / 1e6, operation.averageTimeMillis))
+                append("\n  ")
+                StorageMetrics.histogramLabels.forEachIndexed { index, label -> append("$label: ${operation.histogram.get(index)} ") }
+            }
+        }
+    }
+
     @Cmd("message")
     @PreprocessArgs
     fun cmdMessage(sender: CommandSender, message: String): Any? {
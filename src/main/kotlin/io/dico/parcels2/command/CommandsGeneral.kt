@@ -83,7 +83,7 @@ class CommandsGeneral(plugin: ParcelsPlugin, parent: SpecialCommandAddress) : Ab
             }
         }
 
-        val match = target.getParcelSuspend(plugin.storage)
+        val match = target.getParcelSuspend(plugin.parcelProvider, plugin.storage)
             ?: err("The specified parcel could not be matched")
         player.teleport(match.homeLocation)
         return null
@@ -45,13 +45,16 @@ fun getParcelCommandReceiver(parcelProvider: ParcelProvider, context: ExecutionC
 
 fun ParcelProvider.getWorldRequired(player: Player, admin: Boolean = false): ParcelWorld {
     if (admin) Validate.isTrue(player.hasPermAdminManage, "You must have admin rights to use that command")
-    return getWorld(player.world)
+    val world = getWorld(player.world)
         ?: throw CommandException("You must be in a parcel world to use that command")
+    Validate.isTrue(world.isReady, "The parcels of this world are still being loaded, please try again shortly")
+    return world
 }
 
 fun ParcelProvider.getParcelRequired(player: Player, privilege: Privilege? = null): Parcel {
     val parcel = getWorldRequired(player, admin = privilege == ADMIN).getParcelAt(player)
         ?: throw CommandException("You must be in a parcel to use that command")
+    Validate.isTrue(parcel.isLoaded, "The data of this parcel is still being loaded, please try again shortly")
 
     if (!player.hasPermAdminManage) {
         @Suppress("NON_EXHAUSTIVE_WHEN")
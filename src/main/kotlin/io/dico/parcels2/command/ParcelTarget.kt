@@ -23,11 +23,11 @@ import org.bukkit.entity.Player
 
 sealed class ParcelTarget(val world: ParcelWorld, val parsedKind: Int, val isDefault: Boolean) {
 
-    abstract suspend fun getParcelSuspend(storage: Storage): Parcel?
+    abstract suspend fun getParcelSuspend(provider: ParcelProvider, storage: Storage): Parcel?
 
     class ByID(world: ParcelWorld, val id: Vec2i?, parsedKind: Int, isDefault: Boolean) :
         ParcelTarget(world, parsedKind, isDefault) {
-        override suspend fun getParcelSuspend(storage: Storage): Parcel? = getParcel()
+        override suspend fun getParcelSuspend(provider: ParcelProvider, storage: Storage): Parcel? = getParcel()
         fun getParcel() = id?.let { world.getParcelById(it) }
         val isPath: Boolean get() = id == null
     }
@@ -55,9 +55,11 @@ sealed class ParcelTarget(val world: ParcelWorld, val parsedKind: Int, val isDef
             return true
         }
 
-        override suspend fun getParcelSuspend(storage: Storage): Parcel? {
+        override suspend fun getParcelSuspend(provider: ParcelProvider, storage: Storage): Parcel? {
             onResolveFailure?.let { resolveOwner(storage) }
 
+            provider.getOwnedParcels(owner, world)?.let { return it.getOrNull(index) }
+
             val ownedParcelsSerialized = storage.getOwnedParcels(owner).await()
             val ownedParcels = ownedParcelsSerialized
                 .filter { it.worldId.equals(world.id) }
@@ -3,38 +3,87 @@ package io.dico.parcels2.defaultimpl
 import io.dico.parcels2.Parcel
 import io.dico.parcels2.ParcelContainer
 import io.dico.parcels2.ParcelId
+import gnu.trove.map.hash.TLongObjectHashMap
 import io.dico.parcels2.ParcelWorld
+import io.dico.parcels2.util.math.fromSpiralIndex
+import io.dico.parcels2.util.math.parcelKey
+import io.dico.parcels2.util.math.spiralIndexOf
+import io.dico.parcels2.util.math.spiralSize
+import io.dico.parcels2.util.math.walkInSpiral
+import java.util.BitSet
 
+private const val RESERVATION_MILLIS = 30_000L
+private const val TILE_SHIFT = 4
+private const val TILE_SIZE = 1 shl TILE_SHIFT
+private const val TILE_MASK = TILE_SIZE - 1
+
+/**
+ * A container that keeps every parcel within the axis limit in memory.
+ * Parcels are stored in tiles of 16x16, such that growing the axis limit only allocates the parcels that are added.
+ */
 class DefaultParcelContainer(val world: ParcelWorld) : ParcelContainer {
-    private var parcels: Array<Array<Parcel>>
+    // tiles of TILE_SIZE * TILE_SIZE parcels, keyed by their packed tile coordinates
+    private val tiles = TLongObjectHashMap<Array<Parcel?>>()
+    // the axis limit up to which parcels are allocated
+    private var axisLimit = 0
+
+    // the bits of parcels that have no owner and are not reserved are set, in spiral order
+    private val freeParcels = BitSet()
+    // spiral indices of parcels handed out by nextEmptyParcel, mapped to the time at which the reservation expires
+    private val reservations = hashMapOf<Int, Long>()
 
     init {
-        parcels = initArray(world.options.axisLimit, world)
+        allocate(0, spiralSize(world.options.axisLimit))
+        axisLimit = world.options.axisLimit
     }
 
     fun resizeIfSizeChanged() {
-        if (parcels.size != world.options.axisLimit * 2 + 1) {
+        if (axisLimit != world.options.axisLimit) {
             resize(world.options.axisLimit)
         }
     }
 
-    fun resize(axisLimit: Int) {
-        parcels = initArray(axisLimit, world, this)
+    /**
+     * Changes the axis limit of this container.
+     * Growing only allocates parcels that were never within the axis limit, existing parcels are kept.
+     * Shrinking keeps the parcels that fall outside of the axis limit, such that their data is retained if it grows again.
+     */
+    fun resize(axisLimit: Int) = synchronized(freeParcels) {
+        val oldCount = parcelCount
+        val newCount = spiralSize(axisLimit)
+        if (newCount > oldCount) {
+            allocate(oldCount, newCount)
+        } else {
+            freeParcels.clear(newCount, oldCount)
+            reservations.keys.removeIf { it >= newCount }
+        }
+        this.axisLimit = axisLimit
     }
 
-    fun initArray(axisLimit: Int, world: ParcelWorld, cur: DefaultParcelContainer? = null): Array<Array<Parcel>> {
-        val arraySize = 2 * axisLimit + 1
-        return Array(arraySize) {
-            val x = it - axisLimit
-            Array(arraySize) {
-                val z = it - axisLimit
-                cur?.getParcelById(x, z) ?: ParcelImpl(world, x, z)
+    private val parcelCount get() = spiralSize(axisLimit)
+
+    private fun tileKey(x: Int, z: Int) = parcelKey(x shr TILE_SHIFT, z shr TILE_SHIFT)
+
+    private fun tileIndex(x: Int, z: Int) = ((x and TILE_MASK) shl TILE_SHIFT) or (z and TILE_MASK)
+
+    /**
+     * Allocates the parcels with spiral indices in the given range, if they were not allocated before.
+     */
+    private fun allocate(fromIndex: Int, toIndex: Int) = synchronized(freeParcels) {
+        for (index in fromIndex until toIndex) {
+            fromSpiralIndex(index) { x, z ->
+                val key = tileKey(x, z)
+                val tile = tiles.get(key) ?: arrayOfNulls<Parcel>(TILE_SIZE * TILE_SIZE).also { tiles.put(key, it) }
+                val parcel = tile[tileIndex(x, z)] ?: ParcelImpl(world, x, z).also { tile[tileIndex(x, z)] = it }
+                if (parcel.owner == null && index !in reservations) freeParcels.set(index)
             }
         }
     }
 
     override fun getParcelById(x: Int, z: Int): Parcel? {
-        return parcels.getOrNull(x + world.options.axisLimit)?.getOrNull(z + world.options.axisLimit)
+        val axisLimit = axisLimit
+        if (x !in -axisLimit..axisLimit || z !in -axisLimit..axisLimit) return null
+        return tiles.get(tileKey(x, z))?.get(tileIndex(x, z))
     }
 
     override fun getParcelById(id: ParcelId): Parcel? {
@@ -45,29 +94,47 @@ class DefaultParcelContainer(val world: ParcelWorld) : ParcelContainer {
         }
     }
 
-    override suspend fun nextEmptyParcel(): Parcel? {
-        return walkInCircle().find { it.owner == null }
+    /**
+     * Returns the unowned parcel nearest to the center, and reserves it such that it is not returned again
+     * until it is claimed or the reservation expires.
+     */
+    override suspend fun nextEmptyParcel(): Parcel? = synchronized(freeParcels) {
+        expireReservations()
+
+        val index = freeParcels.nextSetBit(0)
+        if (index < 0) return null
+        val parcel = fromSpiralIndex(index) { x, z -> getParcelById(x, z) } ?: return null
+
+        freeParcels.clear(index)
+        reservations[index] = System.currentTimeMillis() + RESERVATION_MILLIS
+        return parcel
     }
 
-    private fun walkInCircle(): Iterable<Parcel> = Iterable {
-        iterator {
-            val center = world.options.axisLimit
-            yield(parcels[center][center])
-            for (radius in 0..center) {
-                var x = center - radius;
-                var z = center - radius
-                repeat(radius * 2) { yield(parcels[x++][z]) }
-                repeat(radius * 2) { yield(parcels[x][z++]) }
-                repeat(radius * 2) { yield(parcels[x--][z]) }
-                repeat(radius * 2) { yield(parcels[x][z--]) }
-            }
+    /**
+     * Should be called when the owner of a parcel in this container changes, to keep the free parcels up to date.
+     */
+    fun onParcelOwnerChanged(parcel: Parcel) {
+        val index = spiralIndexOf(parcel.x, parcel.z)
+        synchronized(freeParcels) {
+            reservations.remove(index)
+            // parcels outside of the axis limit are checked again by allocate if it grows
+            if (index < parcelCount) freeParcels.set(index, parcel.owner == null)
         }
     }
 
-    fun getAllParcels(): Iterator<Parcel> = iterator {
-        for (array in parcels) {
-            yieldAll(array.iterator())
+    private fun expireReservations() {
+        if (reservations.isEmpty()) return
+        val now = System.currentTimeMillis()
+        val iterator = reservations.entries.iterator()
+        while (iterator.hasNext()) {
+            val (index, expiresAt) = iterator.next()
+            if (expiresAt > now) continue
+            iterator.remove()
+            val parcel = fromSpiralIndex(index) { x, z -> getParcelById(x, z) }
+            if (parcel != null && parcel.owner == null) freeParcels.set(index)
         }
     }
 
-}
\ No newline at end of file
+    fun getAllParcels(): Iterator<Parcel> = walkInSpiral(axisLimit).mapNotNull { (x, z) -> getParcelById(x, z) }.iterator()
+
+}
@@ -4,25 +4,123 @@ package io.dico.parcels2.defaultimpl
 
 import io.dico.parcels2.*
 import io.dico.parcels2.util.ext.alsoIfTrue
-import java.util.Collections
+import kotlinx.coroutines.launch
+import org.bukkit.Bukkit
 
+/**
+ * Loads the global privileges of an owner from storage the first time they are requested, and keeps them in a bounded LRU cache.
+ *
+ * Global privileges are pinned in the cache while they are being loaded, and while their owner or a player they apply to is online.
+ * Until they are loaded, the global privileges of an owner are empty, and whether a player is banned is undecided, see [GlobalPrivileges.isLoaded].
+ * Changes made while loading, including removals and changes to the privilege of the star, are kept when the privileges are read.
+ * This manager expects to be accessed from the server thread only.
+ */
 class GlobalPrivilegesManagerImpl(val plugin: ParcelsPlugin) : GlobalPrivilegesManager {
-    private val map = mutableMapOf<PlayerProfile, GlobalPrivileges>()
+    private val map = LinkedHashMap<PlayerProfile, GlobalPrivilegesImpl>(256, 0.75f, true)
+
+    private inline val cacheSize get() = plugin.options.globalPrivilegesCacheSize
 
     override fun get(owner: PlayerProfile.Real): GlobalPrivileges {
-        return map[owner] ?: GlobalPrivilegesImpl(owner).also { map[owner] = it }
+        val privileges = map[owner] ?: GlobalPrivilegesImpl(owner).also {
+            map[owner] = it
+            if (map.size > cacheSize) evict()
+        }
+        if (!privileges.isLoaded && !privileges.isLoading) privileges.load()
+        return privileges
+    }
+
+    fun getAll(): Collection<GlobalPrivileges> = map.values
+
+    /**
+     * Caches the given privileges of [owner], such as those read from a snapshot.
+     * They are replaced by the privileges in storage when they are first requested.
+     */
+    fun prime(owner: PlayerProfile.Real, data: PrivilegesHolder) {
+        val privileges = map[owner] ?: GlobalPrivilegesImpl(owner).also { map[owner] = it }
+        privileges.copyStoredPrivilegesFrom(data)
+        if (map.size > cacheSize) evict()
+    }
+
+    private fun isPinned(privileges: GlobalPrivilegesImpl): Boolean {
+        if (privileges.isLoading || Bukkit.getPlayer(privileges.keyOfOwner.uuid) != null) return true
+        return privileges.privilegeMap.keys.any { it !is PlayerProfile.Star && Bukkit.getPlayer(it.uuid) != null }
+    }
+
+    /**
+     * Removes the least recently used privileges that are not pinned until the cache is within its bounds.
+     * Gives up after inspecting a limited number of pinned privileges.
+     */
+    private fun evict() {
+        var toRemove = map.size - cacheSize
+        var pinnedBudget = 32
+        val iterator = map.values.iterator()
+        while (toRemove > 0 && pinnedBudget > 0 && iterator.hasNext()) {
+            if (isPinned(iterator.next())) {
+                pinnedBudget--
+                continue
+            }
+            iterator.remove()
+            toRemove--
+        }
     }
 
     private inner class GlobalPrivilegesImpl(override val keyOfOwner: PlayerProfile.Real) : PrivilegesHolder(), GlobalPrivileges {
+        override var isLoaded = false; private set
+        var isLoading = false; private set
+
+        // the changes made before these privileges were read, including those back to DEFAULT, which are applied to the privileges that are read
+        private var changesWhileLoading: MutablePrivilegeMap? = MutablePrivilegeMap()
+
         override var privilegeOfStar: Privilege
             get() = super<GlobalPrivileges>.privilegeOfStar
             set(value) = run { super<GlobalPrivileges>.privilegeOfStar = value }
 
         override fun setRawStoredPrivilege(key: PrivilegeKey, privilege: Privilege): Boolean {
+            val changes = changesWhileLoading
+            if (changes != null) {
+                // the stored privilege is not known yet, so the change is written even if it does not change the privileges read so far
+                super.setRawStoredPrivilege(key, privilege)
+                changes[key] = privilege
+                plugin.storage.setGlobalPrivilege(keyOfOwner, key, privilege)
+                return true
+            }
+
             return super.setRawStoredPrivilege(key, privilege).alsoIfTrue {
                 plugin.storage.setGlobalPrivilege(keyOfOwner, key, privilege)
             }
         }
+
+        /**
+         * Replaces these privileges with [data] without writing them to storage.
+         */
+        fun copyStoredPrivilegesFrom(data: PrivilegesHolder) {
+            privilegeMap = data.privilegeMap
+            super.setRawStoredPrivilege(PlayerProfile.Star, data.privilegeOfStar)
+        }
+
+        private fun applyLoaded(data: PrivilegesHolder) {
+            // privileges that were changed while loading are written to storage after the read, and are kept
+            copyStoredPrivilegesFrom(data)
+            changesWhileLoading?.let { changes ->
+                for ((key, privilege) in changes) super.setRawStoredPrivilege(key, privilege)
+            }
+            changesWhileLoading = null
+        }
+
+        fun load() {
+            isLoading = true
+            plugin.launch {
+                try {
+                    val data = plugin.storage.readGlobalPrivileges(keyOfOwner).await()
+                    applyLoaded(data ?: PrivilegesHolder())
+                    isLoaded = true
+                } catch (ex: Exception) {
+                    logger.error("Failed to load global privileges of $keyOfOwner", ex)
+                } finally {
+                    isLoading = false
+                }
+            }
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,166 @@
+package io.dico.parcels2.defaultimpl
+
+import gnu.trove.set.hash.TLongHashSet
+import io.dico.parcels2.*
+import io.dico.parcels2.util.math.parcelKey
+import io.dico.parcels2.util.math.walkInSpiral
+import io.dico.parcels2.util.scheduleRepeating
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.launch
+import org.bukkit.Bukkit
+import org.bukkit.Location
+import java.lang.ref.WeakReference
+
+/**
+ * A container that does not load all parcel data on startup.
+ * The data of a parcel is read from storage when it is first accessed, and kept in a bounded LRU cache.
+ *
+ * Parcels are pinned in the cache while they are near a player, while their owner is online,
+ * while their data is being loaded or while they have block visitors.
+ * Parcels around players are prefetched when they move into another chunk.
+ *
+ * Until its data is loaded, a parcel is treated as claimed by someone else, see [Parcel.isLoaded].
+ * Parcels that are evicted while they are still referenced are adopted again when they are accessed,
+ * such that there is only ever one instance of a parcel.
+ * This container expects to be accessed from the server thread only.
+ */
+class LazyParcelContainer(val world: ParcelWorld, val plugin: ParcelsPlugin) : ParcelContainer {
+    private val cache = LinkedHashMap<Long, ParcelImpl>(256, 0.75f, true)
+    private val loading = hashMapOf<Long, Job>()
+    private val evicted = hashMapOf<Long, WeakReference<ParcelImpl>>()
+    private var nearPlayers = TLongHashSet()
+
+    init {
+        plugin.scheduleRepeating(20, delay = 20) { refreshNearPlayers() }
+    }
+
+    private inline val axisLimit get() = world.options.axisLimit
+    private inline val cacheSize get() = world.options.lazyCacheSize
+
+    val loadedParcelCount: Int get() = cache.size
+
+    override fun getParcelById(x: Int, z: Int): Parcel? {
+        if (x !in -axisLimit..axisLimit || z !in -axisLimit..axisLimit) return null
+        val key = parcelKey(x, z)
+        var parcel = cache[key]
+        if (parcel == null) {
+            parcel = evicted.remove(key)?.get() ?: ParcelImpl(world, x, z, isLoading = true)
+            cache[key] = parcel
+        }
+
+        // a parcel whose data failed to load is loaded again when it is accessed
+        if (!parcel.isLoaded && key !in loading) load(key, parcel)
+        if (cache.size > cacheSize) evict()
+        return parcel
+    }
+
+    override fun getParcelById(id: ParcelId): Parcel? {
+        if (!world.id.equals(id.worldId)) throw IllegalArgumentException()
+        return when (id) {
+            is Parcel -> id
+            else -> getParcelById(id.x, id.z)
+        }
+    }
+
+    private fun load(key: Long, parcel: ParcelImpl) {
+        val job = plugin.launch {
+            try {
+                parcel.onDataLoaded(world.storage.readParcelData(parcel).await())
+            } catch (ex: Exception) {
+                logger.error("Failed to load data of $parcel", ex)
+            } finally {
+                loading.remove(key)
+            }
+        }
+        if (!job.isCompleted) loading[key] = job
+    }
+
+    private suspend fun awaitLoaded(parcel: Parcel) {
+        loading[parcelKey(parcel.x, parcel.z)]?.join()
+    }
+
+    private fun isPinned(key: Long, parcel: ParcelImpl): Boolean {
+        if (parcel.hasBlockVisitors || key in loading || nearPlayers.contains(key)) return true
+        val owner = parcel.owner as? PlayerProfile.Real ?: return false
+        return Bukkit.getPlayer(owner.uuid) != null
+    }
+
+    /**
+     * Removes the least recently used parcels that are not pinned until the cache is within its bounds.
+     * Gives up after inspecting a limited number of pinned parcels.
+     */
+    private fun evict() {
+        var toRemove = cache.size - cacheSize
+        var pinnedBudget = 32
+        val iterator = cache.entries.iterator()
+        while (toRemove > 0 && pinnedBudget > 0 && iterator.hasNext()) {
+            val (key, parcel) = iterator.next()
+            if (isPinned(key, parcel)) {
+                pinnedBudget--
+                continue
+            }
+            iterator.remove()
+            evicted[key] = WeakReference(parcel)
+            toRemove--
+        }
+
+        if (evicted.size > cacheSize) {
+            evicted.values.removeAll { it.get() == null }
+        }
+    }
+
+    /**
+     * Loads the parcels within [radius] chunks of the given location, if they are not loaded already.
+     * The keys of those parcels are added to [into] if it is not null.
+     */
+    fun prefetchAround(location: Location, radius: Int = world.options.lazyPrefetchRadius, into: TLongHashSet? = null) {
+        val blockX = location.blockX
+        val blockZ = location.blockZ
+        val minX = ((blockX shr 4) - radius) shl 4
+        val minZ = ((blockZ shr 4) - radius) shl 4
+        val maxX = ((blockX shr 4) + radius + 1) shl 4
+        val maxZ = ((blockZ shr 4) + radius + 1) shl 4
+
+        // sample every 8 blocks, which finds any parcel that overlaps the area and is at least 8 blocks wide
+        var lastKey: Long? = null
+        for (x in minX until maxX step 8) {
+            for (z in minZ until maxZ step 8) {
+                val id = world.locator.getParcelIdAt(x, z) ?: continue
+                val key = parcelKey(id.x, id.z)
+                if (key == lastKey) continue
+                lastKey = key
+                into?.add(key)
+                getParcelById(id.x, id.z)
+            }
+        }
+    }
+
+    private fun refreshNearPlayers() {
+        val nearPlayers = TLongHashSet()
+        for (player in world.world.players) {
+            prefetchAround(player.location, into = nearPlayers)
+        }
+        this.nearPlayers = nearPlayers
+    }
+
+    /**
+     * Finds the parcel nearest to the center that has no owner, using the keys of the claimed parcels in storage,
+     * such that a parcel is only loaded to confirm that it is still unclaimed.
+     */
+    override suspend fun nextEmptyParcel(): Parcel? {
+        val claimed = TLongHashSet(world.storage.getClaimedParcelKeys(world.id).await())
+        for ((x, z) in walkInSpiral(axisLimit)) {
+            val key = parcelKey(x, z)
+            // loaded parcels might have changes that are not in storage yet
+            val cached = cache[key]
+            val isClaimed = if (cached != null && cached.isLoaded) cached.owner != null else claimed.contains(key)
+            if (isClaimed) continue
+
+            val parcel = getParcelById(x, z) ?: continue
+            awaitLoaded(parcel)
+            if (parcel.isLoaded && parcel.owner == null) return parcel
+        }
+        return null
+    }
+
+}
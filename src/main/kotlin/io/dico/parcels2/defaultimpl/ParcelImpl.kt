@@ -9,24 +9,101 @@ import org.bukkit.Material
 import org.joda.time.DateTime
 import java.lang.IllegalStateException
 
+/**
+ * Used by containers that do not keep an instance for parcels without data.
+ * Such parcels share [emptyParcelData] until they are first written to, at which point they are materialized.
+ */
+interface ParcelMaterializer {
+    /**
+     * Adds [parcel] to the container, unless another instance with the same id was added first.
+     * Returns the instance that is kept by the container.
+     */
+    fun materialize(parcel: ParcelImpl): ParcelImpl
+}
+
+/**
+ * The data shared by parcels that are not materialized. It is never written to.
+ */
+private val emptyParcelData = ParcelDataHolder()
+
 class ParcelImpl (
     override val world: ParcelWorld,
     override val x: Int,
-    override val z: Int
+    override val z: Int,
+    private val materializer: ParcelMaterializer? = null,
+    isLoading: Boolean = false
 ) : Parcel, ParcelId {
     override val id: ParcelId get() = this
     override val pos get() = Vec2i(x, z)
-    override var data = ParcelDataHolder(); private set
     override val worldId: ParcelWorldId get() = world.id
 
+    private var _data = if (materializer == null) ParcelDataHolder() else emptyParcelData
+    // the instance kept by the container, if another instance was materialized before this one
+    private var canonical: ParcelImpl? = null
+
+    override val data: ParcelDataHolder
+        get() = canonical?.data ?: _data
+
+    // the changes made while the data of this parcel is read from storage, which are applied to the data that is read
+    private var changesWhileLoading: MutableList<(ParcelDataHolder) -> ParcelDataHolder>? = if (isLoading) ArrayList() else null
+
+    override val isLoaded: Boolean
+        get() = changesWhileLoading == null
+
+    private fun recordChange(change: (ParcelDataHolder) -> ParcelDataHolder) {
+        changesWhileLoading?.add(change)
+    }
+
+    /**
+     * Called by the container when the data of this parcel was read from storage, which is null if there is none.
+     * The changes made in the meantime were written to storage already, and are applied on top of the data that was read.
+     */
+    internal fun onDataLoaded(stored: ParcelDataHolder?) {
+        val changes = changesWhileLoading ?: return
+        changesWhileLoading = null
+        if (stored == null) return
+        copyData(changes.fold(stored) { data, change -> change(data) }, callerIsDatabase = true)
+    }
+
+    /**
+     * Whether this parcel was changed after its data was loaded, other than by loading data
+     */
+    var isModifiedLocally = false
+        get() = canonical?.isModifiedLocally ?: field
+        private set
+
+    /**
+     * Materializes this parcel if it is not materialized yet, and returns the instance that writes should be applied to.
+     */
+    private fun writable(): ParcelImpl {
+        canonical?.let { return it }
+        if (_data !== emptyParcelData) return this
+
+        val canonical = materializer!!.materialize(this)
+        if (canonical === this) _data = ParcelDataHolder()
+        else this.canonical = canonical
+        return canonical
+    }
+
     override fun copyData(newData: ParcelDataHolder, callerIsDatabase: Boolean) {
+        val target = writable()
+        if (target !== this) return target.copyData(newData, callerIsDatabase)
+
+        // the shared empty data must never be adopted, as it would be written to
+        @Suppress("NAME_SHADOWING")
+        val newData = if (newData === emptyParcelData) ParcelDataHolder() else newData
+
+        val oldOwner = owner
+        val ownerChanged = oldOwner != newData.owner
+        _data = newData
+        if (ownerChanged) onOwnerChanged(oldOwner)
+
         if (callerIsDatabase) {
-            data = newData
             return
         }
 
-        val ownerChanged = owner != newData.owner
-        data = newData
+        isModifiedLocally = true
+        recordChange { newData }
 
         if (ownerChanged) {
             updateOwnerSign(true, false, false)
@@ -39,12 +116,28 @@ class ParcelImpl (
         get() = data.owner
         set(value) {
             if (data.owner != value) {
+                val target = writable()
+                if (target !== this) {
+                    target.owner = value
+                    return
+                }
+
                 world.storage.setParcelOwner(this, value)
+                isModifiedLocally = true
+                val oldOwner = data.owner
                 data.owner = value
+                val claimTime = value?.let { DateTime.now() }
+                data.lastClaimTime = claimTime
+                recordChange { it.owner = value; it.lastClaimTime = claimTime; it }
+                onOwnerChanged(oldOwner)
                 updateOwnerSign(true, false, true)
             }
         }
 
+    private fun onOwnerChanged(oldOwner: PlayerProfile?) {
+        (world as? ParcelWorldImpl)?.onParcelOwnerChanged(this, oldOwner)
+    }
+
     override val lastClaimTime: DateTime?
         get() = data.lastClaimTime
 
@@ -52,8 +145,16 @@ class ParcelImpl (
         get() = data.isOwnerSignOutdated
         set(value) {
             if (data.isOwnerSignOutdated != value) {
+                val target = writable()
+                if (target !== this) {
+                    target.isOwnerSignOutdated = value
+                    return
+                }
+
                 world.storage.setParcelOwnerSignOutdated(this, value)
+                isModifiedLocally = true
                 data.isOwnerSignOutdated = value
+                recordChange { it.isOwnerSignOutdated = value; it }
             }
         }
 
@@ -80,14 +181,23 @@ class ParcelImpl (
 
     override fun getRawStoredPrivilege(key: PrivilegeKey) = data.getRawStoredPrivilege(key)
 
-    override fun setRawStoredPrivilege(key: PrivilegeKey, privilege: Privilege) =
-        data.setRawStoredPrivilege(key, privilege).alsoIfTrue {
+    override fun setRawStoredPrivilege(key: PrivilegeKey, privilege: Privilege): Boolean {
+        val target = writable()
+        if (target !== this) return target.setRawStoredPrivilege(key, privilege)
+
+        return data.setRawStoredPrivilege(key, privilege).alsoIfTrue {
             world.storage.setLocalPrivilege(this, key, privilege)
+            isModifiedLocally = true
+            recordChange { it.setRawStoredPrivilege(key, privilege); it }
         }
+    }
 
+    // until the owner is known, nobody has privileges on this parcel
+    // until the global privileges of the owner are known, players without local privileges are treated as banned
     override fun getStoredPrivilege(key: PrivilegeKey): Privilege =
-        super.getStoredPrivilege(key).takeIf { it != DEFAULT }
-            ?: globalPrivileges?.getStoredPrivilege(key)
+        if (!isLoaded) DEFAULT
+        else super.getStoredPrivilege(key).takeIf { it != DEFAULT }
+            ?: globalPrivileges?.let { if (it.isLoaded) it.getStoredPrivilege(key) else BANNED }
             ?: DEFAULT
 
     override fun hasAnyDeclaredPrivileges() = data.hasAnyDeclaredPrivileges()
@@ -96,8 +206,16 @@ class ParcelImpl (
 
     private fun updateInteractableConfigStorage() {
         world.storage.setParcelOptionsInteractConfig(this, data.interactableConfig)
+        writable().isModifiedLocally = true
+        if (!isLoaded) {
+            val config = BitmaskInteractableConfiguration().apply { copyFrom(data.interactableConfig) }
+            recordChange { it.interactableConfig = config; it }
+        }
     }
 
+    private val writableInteractableConfig: InteractableConfiguration
+        get() = writable().data.interactableConfig
+
     override var interactableConfig: InteractableConfiguration
         get() {
             if (_interactableConfig == null) {
@@ -107,26 +225,29 @@ class ParcelImpl (
                     override fun isDefault(): Boolean = data.interactableConfig.isDefault()
 
                     override fun setInteractable(clazz: Interactables, interactable: Boolean): Boolean =
-                        data.interactableConfig.setInteractable(clazz, interactable).alsoIfTrue { updateInteractableConfigStorage() }
+                        writableInteractableConfig.setInteractable(clazz, interactable).alsoIfTrue { updateInteractableConfigStorage() }
 
                     override fun clear(): Boolean =
-                        data.interactableConfig.clear().alsoIfTrue { updateInteractableConfigStorage() }
+                        writableInteractableConfig.clear().alsoIfTrue { updateInteractableConfigStorage() }
                 }
             }
             return _interactableConfig!!
         }
         set(value) {
-            if (data.interactableConfig.copyFrom(value)) {
+            if (writableInteractableConfig.copyFrom(value)) {
                 updateInteractableConfigStorage()
             }
         }
 
     override val hasBlockVisitors: Boolean
-        get() = permit != null
+        get() = canonical?.hasBlockVisitors ?: (permit != null)
 
     private var permit: Permit? = null
 
     fun acquireBlockVisitorPermit(with: Permit): Boolean {
+        val target = writable()
+        if (target !== this) return target.acquireBlockVisitorPermit(with)
+
         if (permit === with) return true
         if (permit != null) return false
         permit = with
@@ -134,6 +255,7 @@ class ParcelImpl (
     }
 
     fun releaseBlockVisitorPermit(with: Permit) {
+        canonical?.let { return it.releaseBlockVisitorPermit(with) }
         if (permit !== with) throw IllegalStateException()
         permit = null
     }
@@ -1,14 +1,22 @@
 package io.dico.parcels2.defaultimpl
 
+import gnu.trove.set.hash.TLongHashSet
 import io.dico.parcels2.*
 import io.dico.parcels2.blockvisitor.Schematic
+import io.dico.parcels2.options.ParcelContainerKind
+import io.dico.parcels2.storage.ParcelSnapshot
+import io.dico.parcels2.storage.isImportScheduled
+import io.dico.parcels2.storage.receiveWithinBudget
+import io.dico.parcels2.storage.runScheduledImport
 import io.dico.parcels2.util.math.Region
 import io.dico.parcels2.util.math.Vec3d
 import io.dico.parcels2.util.math.Vec3i
+import io.dico.parcels2.util.math.parcelKey
 import io.dico.parcels2.util.schedule
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import org.bukkit.Bukkit
 import org.bukkit.World
 import org.bukkit.WorldCreator
@@ -19,13 +27,14 @@ import org.joda.time.DateTime
 class ParcelProviderImpl(val plugin: ParcelsPlugin) : ParcelProvider {
     inline val options get() = plugin.options
     override val worlds: Map<String, ParcelWorld> get() = _worlds
-    private val _worlds: MutableMap<String, ParcelWorld> = hashMapOf()
+    private val _worlds: MutableMap<String, ParcelWorldImpl> = hashMapOf()
     private val _generators: MutableMap<String, ParcelGenerator> = hashMapOf()
     private var _worldsLoaded = false
-    private var _dataIsLoaded = false
+    // parcels of worlds that keep all parcels in memory, keyed by ownerKey, ordered by claim time
+    private val _ownedParcels: MutableMap<Any, MutableList<Parcel>> = hashMapOf()
 
-    // disabled while !_dataIsLoaded. getParcelById() will work though for data loading.
-    override fun getWorld(name: String): ParcelWorld? = _worlds[name]?.takeIf { _dataIsLoaded }
+    // returns worlds that are still loading, check ParcelWorld.isReady where that matters.
+    override fun getWorld(name: String): ParcelWorld? = _worlds[name]
 
     override fun getWorldById(id: ParcelWorldId): ParcelWorld? {
         if (id is ParcelWorld) return id
@@ -43,6 +52,39 @@ class ParcelProviderImpl(val plugin: ParcelsPlugin) : ParcelProvider {
             ?: options.worlds[worldName]?.generator?.newInstance(worldName)?.also { _generators[worldName] = it }
     }
 
+    override fun getOwnedParcels(owner: PlayerProfile, world: ParcelWorld): List<Parcel>? {
+        if (!world.isReady || world.container is LazyParcelContainer) return null
+        val key = ownerKey(owner) ?: return null
+        return _ownedParcels[key]?.filter { world.id.equals(it.id.worldId) } ?: emptyList()
+    }
+
+    // PlayerProfile.hashCode is not consistent with equals for fake profiles
+    private fun ownerKey(owner: PlayerProfile): Any? = when (owner) {
+        is PlayerProfile.Star -> PlayerProfile.Star.name
+        is PlayerProfile.Real -> owner.uuid
+        is PlayerProfile.Fake -> owner.name.toLowerCase()
+        else -> null
+    }
+
+    /**
+     * Called by [ParcelWorldImpl] when the owner of a parcel changes, including when its data is loaded
+     */
+    fun onParcelOwnerChanged(parcel: Parcel, oldOwner: PlayerProfile?) {
+        oldOwner?.let(::ownerKey)?.let { key ->
+            val parcels = _ownedParcels[key] ?: return@let
+            parcels.removeAll { it.id.equals(parcel.id) }
+            if (parcels.isEmpty()) _ownedParcels.remove(key)
+        }
+
+        val key = parcel.owner?.let(::ownerKey) ?: return
+        val parcels = _ownedParcels.getOrPut(key) { ArrayList(1) }
+        // claim times are mostly increasing, and parcels without a claim time are ordered last like in the database
+        val claimTime = parcel.lastClaimTime
+        val index = if (claimTime == null) parcels.size
+        else parcels.indexOfLast { it.lastClaimTime?.isAfter(claimTime) == false } + 1
+        parcels.add(index, parcel)
+    }
+
     override fun loadWorlds() {
         if (_worldsLoaded) throw IllegalStateException()
         _worldsLoaded = true
@@ -70,8 +112,14 @@ class ParcelProviderImpl(val plugin: ParcelsPlugin) : ParcelProvider {
                     WorldCreator(worldName).generator(generator).createWorld()
                 }
 
+            val containerFactory: ParcelContainerFactory = when (worldOptions.runtime.containerKind) {
+                ParcelContainerKind.DEFAULT -> ::DefaultParcelContainer
+                ParcelContainerKind.LAZY -> { world -> LazyParcelContainer(world, plugin) }
+                ParcelContainerKind.SPARSE -> ::SparseParcelContainer
+            }
+
             parcelWorld =
-                ParcelWorldImpl(plugin, bukkitWorld, generator, worldOptions.runtime, ::DefaultParcelContainer)
+                ParcelWorldImpl(plugin, bukkitWorld, generator, worldOptions.runtime, containerFactory)
 
             if (!worldExists) {
                 val time = DateTime.now()
@@ -95,7 +143,7 @@ class ParcelProviderImpl(val plugin: ParcelsPlugin) : ParcelProvider {
         plugin.launch {
             val migration = plugin.options.migration
             if (migration.enabled) {
-                migration.instance?.newInstance()?.apply {
+                migration.instance?.newInstance(plugin.dataFolder)?.apply {
                     logger.warn("Migrating database now...")
                     migrateTo(plugin.storage).join()
                     logger.warn("Migration completed")
@@ -107,34 +155,106 @@ class ParcelProviderImpl(val plugin: ParcelsPlugin) : ParcelProvider {
                 }
             }
 
-            logger.info("Loading all parcel data...")
-
-            val job1 = launch {
-                val channel = plugin.storage.transmitAllParcelData()
-                while (true) {
-                    val (id, data) = channel.receiveOrNull() ?: break
-                    val parcel = getParcelById(id) ?: continue
-                    data?.let { parcel.copyData(it, callerIsDatabase = true) }
+            // the snapshot holds the data that an import replaces
+            val isImporting = isImportScheduled(plugin.dataFolder)
+            if (isImporting) {
+                logger.warn("Importing storage now...")
+                try {
+                    val counts = withContext(Dispatchers.Default) { runScheduledImport(plugin.dataFolder, plugin.storage) }
+                    logger.warn("Imported $counts")
+                } catch (ex: Exception) {
+                    logger.error("Failed to import storage, it is not attempted again", ex)
                 }
             }
 
-            val channel2 = plugin.storage.transmitAllGlobalPrivileges()
-            while (true) {
-                val (profile, data) = channel2.receiveOrNull() ?: break
-                if (profile !is PrivilegeKey) {
-                    logger.error("Received profile that is not a privilege key: ${profile.javaClass}, $profile")
-                    continue
+            val snapshot = if (options.snapshotEnabled) plugin.parcelSnapshot.read()?.takeUnless { isImporting } else null
+            if (snapshot != null) {
+                logger.info("Loading parcel data from the snapshot of ${snapshot.createdAt}, " +
+                    "it will be reconciled with the database afterwards")
+                val globalPrivileges = plugin.globalPrivileges as GlobalPrivilegesManagerImpl
+                for ((key, data) in snapshot.globalPrivileges) {
+                    globalPrivileges.prime(key, data)
                 }
-                (plugin.globalPrivileges[profile] as PrivilegesHolder).copyPrivilegesFrom(data)
+            } else {
+                logger.info("Loading all parcel data...")
             }
 
-            job1.join()
+            // global privileges are loaded per owner when they are first requested
+            val budget = options.tickJobtime.jobTime
+
+            // worlds with the most players are protected first, then the smallest worlds
+            val worlds = _worlds.values.sortedWith(
+                compareByDescending<ParcelWorldImpl> { it.world.players.size }.thenBy { it.options.axisLimit })
+
+            for ((index, world) in worlds.withIndex()) {
+                world.loadState = ParcelWorldLoadState.LOADING
+                val startTime = System.currentTimeMillis()
+                var parcelCount = 0
+                val snapshotParcels = snapshot?.worlds?.get(world.name)
+
+                if (world.container is LazyParcelContainer) {
+                    // lazy containers load parcel data when it is accessed
+                } else if (snapshotParcels != null) {
+                    for ((id, data) in snapshotParcels) {
+                        world.getParcelById(id)?.copyData(data, callerIsDatabase = true)
+                    }
+                    parcelCount = snapshotParcels.size
+                } else {
+                    plugin.storage.transmitWorldParcelData(world.id).receiveWithinBudget(budget) { (id, data) ->
+                        val parcel = getParcelById(id) ?: return@receiveWithinBudget
+                        data?.let { parcel.copyData(it, callerIsDatabase = true) }
+                        parcelCount++
+                    }
+                }
+
+                world.loadState = ParcelWorldLoadState.READY
+                logger.info("Loaded $parcelCount parcels of ${world.name} in ${System.currentTimeMillis() - startTime}ms " +
+                    "(${index + 1}/${worlds.size} worlds)")
+            }
 
             logger.info("Loading data completed")
-            _dataIsLoaded = true
+
+            if (snapshot != null) reconcileWithStorage(snapshot)
         }
     }
 
+    /**
+     * Applies the parcel data in storage to the worlds that were loaded from [snapshot],
+     * except to parcels that were changed since they were loaded.
+     */
+    private suspend fun reconcileWithStorage(snapshot: ParcelSnapshot.Data) {
+        val startTime = System.currentTimeMillis()
+        var claimedSinceSnapshot = 0
+        var removedSinceSnapshot = 0
+
+        for (world in _worlds.values) {
+            if (world.container is LazyParcelContainer) continue
+            val snapshotParcels = snapshot.worlds[world.name] ?: continue
+            val received = TLongHashSet()
+
+            plugin.storage.transmitWorldParcelData(world.id).receiveWithinBudget(options.tickJobtime.jobTime) { (id, data) ->
+                val parcel = world.getParcelById(id.x, id.z) as? ParcelImpl ?: return@receiveWithinBudget
+                received.add(parcelKey(id.x, id.z))
+                if (data == null || parcel.isModifiedLocally) return@receiveWithinBudget
+
+                if ((data.lastClaimTime?.millis ?: 0L) > snapshot.claimTimeMark) claimedSinceSnapshot++
+                parcel.copyData(data, callerIsDatabase = true)
+            }
+
+            // parcels that are no longer in storage were disposed after the snapshot was written
+            for ((id, _) in snapshotParcels) {
+                if (received.contains(parcelKey(id.x, id.z))) continue
+                val parcel = world.getParcelById(id) as? ParcelImpl ?: continue
+                if (parcel.isModifiedLocally) continue
+                parcel.copyData(ParcelDataHolder(), callerIsDatabase = true)
+                removedSinceSnapshot++
+            }
+        }
+
+        logger.info("Reconciled the snapshot with the database in ${System.currentTimeMillis() - startTime}ms, " +
+            "$claimedSinceSnapshot parcels were claimed and $removedSinceSnapshot were disposed since it was written")
+    }
+
     override fun acquireBlockVisitorPermit(parcelId: ParcelId, with: Permit): Boolean {
         val parcel = getParcelById(parcelId) as? ParcelImpl ?: return true
         return parcel.acquireBlockVisitorPermit(with)
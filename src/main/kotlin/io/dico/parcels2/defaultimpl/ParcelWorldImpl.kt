@@ -60,6 +60,9 @@ class ParcelWorldImpl(
     // Accessed by ParcelProviderImpl
     override var creationTime: DateTime? = null
 
+    // Accessed by ParcelProviderImpl
+    override var loadState = ParcelWorldLoadState.PENDING
+
 
     override fun getParcelAt(x: Int, z: Int): Parcel? = locator.getParcelAt(x, z)
 
@@ -71,5 +74,15 @@ class ParcelWorldImpl(
 
     override suspend fun nextEmptyParcel(): Parcel? = container.nextEmptyParcel()
 
+    /**
+     * Called by [ParcelImpl] when the owner of a parcel in this world changes, including when its data is loaded
+     */
+    fun onParcelOwnerChanged(parcel: Parcel, oldOwner: PlayerProfile?) {
+        (container as? DefaultParcelContainer)?.onParcelOwnerChanged(parcel)
+        if (container !is LazyParcelContainer) {
+            (plugin.parcelProvider as? ParcelProviderImpl)?.onParcelOwnerChanged(parcel, oldOwner)
+        }
+    }
+
     override fun toString() = parcelWorldIdToString()
 }
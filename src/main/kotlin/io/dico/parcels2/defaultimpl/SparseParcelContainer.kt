@@ -0,0 +1,79 @@
+package io.dico.parcels2.defaultimpl
+
+import gnu.trove.map.hash.TLongObjectHashMap
+import io.dico.parcels2.Parcel
+import io.dico.parcels2.ParcelContainer
+import io.dico.parcels2.ParcelId
+import io.dico.parcels2.ParcelWorld
+import io.dico.parcels2.util.math.parcelKey
+import io.dico.parcels2.util.math.walkInSpiral
+import java.lang.ref.WeakReference
+
+/**
+ * A container that only keeps instances of parcels that have been written to, keyed by their packed id.
+ * Other parcels are represented by short-lived instances which share a single empty data instance,
+ * and are materialized when they are first written to, see [ParcelMaterializer].
+ * Those instances are weakly cached, such that repeated lookups of a parcel return the same instance while it is used.
+ *
+ * This container expects to be accessed from the server thread only.
+ */
+class SparseParcelContainer(val world: ParcelWorld) : ParcelContainer, ParcelMaterializer {
+    private val parcels = TLongObjectHashMap<ParcelImpl>()
+    private val transient = TLongObjectHashMap<WeakReference<ParcelImpl>>()
+    // the number of transient instances at which the references that were cleared are removed
+    private var purgeThreshold = 256
+
+    private inline val axisLimit get() = world.options.axisLimit
+
+    val materializedParcelCount: Int get() = parcels.size()
+
+    override fun getParcelById(x: Int, z: Int): Parcel? {
+        if (x !in -axisLimit..axisLimit || z !in -axisLimit..axisLimit) return null
+        val key = parcelKey(x, z)
+        return parcels.get(key) ?: transient.get(key)?.get() ?: newTransientParcel(key, x, z)
+    }
+
+    private fun newTransientParcel(key: Long, x: Int, z: Int): ParcelImpl {
+        val parcel = ParcelImpl(world, x, z, this)
+        transient.put(key, WeakReference(parcel))
+        if (transient.size() > purgeThreshold) {
+            transient.retainEntries { _, reference -> reference.get() != null }
+            purgeThreshold = maxOf(256, transient.size() * 2)
+        }
+        return parcel
+    }
+
+    override fun getParcelById(id: ParcelId): Parcel? {
+        if (!world.id.equals(id.worldId)) throw IllegalArgumentException()
+        return when (id) {
+            is Parcel -> id
+            else -> getParcelById(id.x, id.z)
+        }
+    }
+
+    override fun materialize(parcel: ParcelImpl): ParcelImpl {
+        val key = parcelKey(parcel.x, parcel.z)
+        parcels.get(key)?.let { return it }
+        parcels.put(key, parcel)
+        transient.remove(key)
+        return parcel
+    }
+
+    override suspend fun nextEmptyParcel(): Parcel? {
+        for ((x, z) in walkInSpiral(axisLimit)) {
+            val parcel = parcels.get(parcelKey(x, z))
+            if (parcel == null || parcel.owner == null) return parcel ?: getParcelById(x, z)
+        }
+        return null
+    }
+
+    fun getAllParcels(): Iterator<Parcel> = iterator {
+        val axisLimit = axisLimit
+        for (x in -axisLimit..axisLimit) {
+            for (z in -axisLimit..axisLimit) {
+                yield(getParcelById(x, z)!!)
+            }
+        }
+    }
+
+}
@@ -6,6 +6,7 @@ import io.dico.dicore.Formatting
 import io.dico.dicore.ListenerMarker
 import io.dico.dicore.RegistratorListener
 import io.dico.parcels2.*
+import io.dico.parcels2.defaultimpl.LazyParcelContainer
 import io.dico.parcels2.storage.Storage
 import io.dico.parcels2.util.ext.*
 import io.dico.parcels2.util.math.*
@@ -40,11 +41,13 @@ class ParcelListeners(
     val entityTracker: ParcelEntityTracker,
     val storage: Storage
 ) {
+    // the data of parcels in worlds that are not ready, or of parcels that are not loaded, is not known
+    // only players that can build anywhere can build there
     private fun canBuildOnArea(user: Player, area: Parcel?) =
-        if (area == null) user.hasPermBuildAnywhere else area.canBuild(user)
+        if (area == null || !area.world.isReady || !area.isLoaded) user.hasPermBuildAnywhere else area.canBuild(user)
 
     private fun canInteract(user: Player, area: Parcel?, interactClass: String) =
-        canBuildOnArea(user, area) || (area != null && area.interactableConfig(interactClass))
+        canBuildOnArea(user, area) || (area != null && area.world.isReady && area.isLoaded && area.interactableConfig(interactClass))
 
     /**
      * Get the world and parcel that the block resides in
@@ -72,6 +75,8 @@ class ParcelListeners(
             val dimension = region.getFirstUncontainedDimensionOf(Vec3i(event.from))
 
             if (dimension == null) {
+                // players already inside are not removed while it is not known whether they are banned
+                if (parcel.globalPrivileges?.isLoaded == false) return@l
                 user.teleport(parcel.homeLocation)
                 user.sendParcelMessage(nopermit = true, message = "You are banned from this parcel")
 
@@ -95,6 +100,18 @@ class ParcelListeners(
         }
     }
 
+    /*
+     * Prefetches parcel data around players that move into another chunk, for worlds that load it lazily
+     */
+    @field:ListenerMarker(priority = EventPriority.MONITOR)
+    val onPlayerMoveChunkEvent = RegistratorListener<PlayerMoveEvent> l@{ event ->
+        val from = event.from
+        val to = event.to
+        if (from.blockX shr 4 == to.blockX shr 4 && from.blockZ shr 4 == to.blockZ shr 4) return@l
+        val container = parcelProvider.getWorld(to.world)?.container as? LazyParcelContainer ?: return@l
+        container.prefetchAround(to)
+    }
+
     /*
      * Prevents players from breaking blocks outside of their parcels
      * Prevents containers from dropping their contents when broken, if configured
@@ -2,21 +2,31 @@ package io.dico.parcels2.options
 
 import io.dico.parcels2.storage.migration.Migration
 import io.dico.parcels2.storage.migration.plotme.PlotmeMigration
+import java.io.File
 import kotlin.reflect.KClass
 
 object MigrationOptionsFactories : PolymorphicOptionsFactories<Migration>("kind", MigrationOptions::class, PlotmeMigrationFactory())
 
-class MigrationOptions(kind: String = "plotme-0.17", options: Any = PlotmeMigrationOptions()) : SimplePolymorphicOptions<Migration>(kind, options, MigrationOptionsFactories)
+class MigrationOptions(kind: String = "plotme-0.17", options: Any = PlotmeMigrationOptions()) : SimplePolymorphicOptions<Migration>(kind, options, MigrationOptionsFactories) {
+
+    /**
+     * Creates the migration. Its progress is kept in the given [dataFolder], such that it can be resumed.
+     */
+    fun newInstance(dataFolder: File): Migration = factory.newInstance(key, options, dataFolder)
+}
 
 private class PlotmeMigrationFactory : PolymorphicOptionsFactory<Migration> {
     override val supportedKeys = listOf("plotme-0.17")
     override val optionsClass: KClass<out Any> get() = PlotmeMigrationOptions::class
 
     override fun newInstance(key: String, options: Any, vararg extra: Any?): Migration {
-        return PlotmeMigration(options as PlotmeMigrationOptions)
+        val dataFolder = extra.firstOrNull() as? File
+        return PlotmeMigration(options as PlotmeMigrationOptions, dataFolder?.let { File(it, "plotme-migration.properties") })
     }
 }
 
 class PlotmeMigrationOptions(val worldsFromTo: Map<String, String> = mapOf("plotworld" to "parcels"),
                              val storage: StorageOptions = StorageOptions(options = DataConnectionOptions(database = "plotme")),
-                             val tableNamesUppercase: Boolean = false)
\ No newline at end of file
+                             val tableNamesUppercase: Boolean = false,
+                             val pageSize: Int = 1000,
+                             val parallelism: Int = 4)
\ No newline at end of file
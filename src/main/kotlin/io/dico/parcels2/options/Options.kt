@@ -1,5 +1,6 @@
 package io.dico.parcels2.options
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties
 import io.dico.parcels2.TickJobtimeOptions
 import org.bukkit.GameMode
 import org.bukkit.Material
@@ -7,11 +8,16 @@ import java.io.Reader
 import java.io.Writer
 import java.util.EnumSet
 
+// snapshots used to be written periodically, but only one written on shutdown can be trusted
+@JsonIgnoreProperties("snapshot-interval-minutes")
 class Options {
     var worlds: Map<String, WorldOptions> = hashMapOf()
         private set
     var storage: StorageOptions = StorageOptions()
     var tickJobtime: TickJobtimeOptions = TickJobtimeOptions(20, 1)
+    var pregenChunksPerTick: Int = 4
+    var snapshotEnabled: Boolean = false
+    var globalPrivilegesCacheSize: Int = 1024
     var migration = MigrationOptionsHolder()
 
     fun addWorld(name: String,
@@ -47,9 +53,32 @@ class RuntimeWorldOptions(var gameMode: GameMode? = GameMode.CREATIVE,
                           var blockPortalCreation: Boolean = true,
                           var blockMobSpawning: Boolean = true,
                           var blockedItems: Set<Material> = EnumSet.of(Material.FLINT_AND_STEEL, Material.SNOWBALL),
-                          var axisLimit: Int = 10)
+                          var axisLimit: Int = 10,
+                          var containerKind: ParcelContainerKind = ParcelContainerKind.DEFAULT,
+                          var lazyCacheSize: Int = 4096,
+                          var lazyPrefetchRadius: Int = 2)
 
-class DataFileOptions(val location: String = "/flatfile-storage/")
+enum class ParcelContainerKind {
+    /**
+     * All parcel data of the world is loaded on startup
+     */
+    DEFAULT,
+
+    /**
+     * Parcel data is loaded when it is first accessed, and kept in a bounded cache
+     */
+    LAZY,
+
+    /**
+     * All parcel data of the world is loaded on startup, but only parcels that have data are kept in memory
+     */
+    SPARSE
+}
+
+class DataFileOptions(val location: String = "/flatfile-storage/",
+                      val syncIntervalMillis: Long = 50,
+                      val compactThresholdBytes: Long = 16L * 1024 * 1024,
+                      val channelCapacity: Int = 1024)
 
 class MigrationOptionsHolder {
     var enabled = false
@@ -4,11 +4,16 @@ import com.zaxxer.hikari.HikariDataSource
 import io.dico.parcels2.logger
 import io.dico.parcels2.storage.Storage
 import io.dico.parcels2.storage.BackedStorage
+import io.dico.parcels2.storage.WriteBehindStorage
+import io.dico.parcels2.storage.WriteSpillFile
 import io.dico.parcels2.storage.exposed.ExposedBacking
+import io.dico.parcels2.storage.getEmbeddedHikariConfig
 import io.dico.parcels2.storage.getHikariConfig
+import io.dico.parcels2.storage.logfile.LogFileBacking
+import java.io.File
 import javax.sql.DataSource
 
-object StorageOptionsFactories : PolymorphicOptionsFactories<Storage>("dialect", StorageOptions::class, ConnectionStorageFactory())
+object StorageOptionsFactories : PolymorphicOptionsFactories<Storage>("dialect", StorageOptions::class, ConnectionStorageFactory(), EmbeddedStorageFactory(), LogFileStorageFactory())
 
 class StorageOptions(dialect: String = "mariadb", options: Any = DataConnectionOptions()) : SimplePolymorphicOptions<Storage>(dialect, options, StorageOptionsFactories) {
 
@@ -18,10 +23,17 @@ class StorageOptions(dialect: String = "mariadb", options: Any = DataConnectionO
             else -> return null
         }
     }
+
+    /**
+     * Creates the storage. Files of embedded storage are placed in the given [dataFolder].
+     */
+    fun newInstance(dataFolder: File): Storage = factory.newInstance(key, options, dataFolder)
 }
 
 typealias DataSourceFactory = () -> DataSource
 
+private fun spillFileIn(dataFolder: File?) = dataFolder?.let { WriteSpillFile(File(it, "parcels-spill.bin")) }
+
 private class ConnectionStorageFactory : PolymorphicOptionsFactory<Storage> {
     override val optionsClass = DataConnectionOptions::class
     override val supportedKeys: List<String> = listOf("postgresql", "mariadb")
@@ -32,15 +44,61 @@ private class ConnectionStorageFactory : PolymorphicOptionsFactory<Storage> {
     }
 
     override fun newInstance(key: String, options: Any, vararg extra: Any?): Storage {
-        return BackedStorage(ExposedBacking(getDataSourceFactory(key, options), (options as DataConnectionOptions).poolSize))
+        options as DataConnectionOptions
+        val storage = BackedStorage(ExposedBacking(getDataSourceFactory(key, options), options.poolSize, options.channelCapacity,
+            options.groupCommitSize, options.groupCommitMillis), spillFileIn(extra.firstOrNull() as? File))
+        return if (options.writeBehindMillis > 0) WriteBehindStorage(storage, options.writeBehindMillis) else storage
+    }
+}
+
+private class EmbeddedStorageFactory : PolymorphicOptionsFactory<Storage> {
+    override val optionsClass = EmbeddedDatabaseOptions::class
+    override val supportedKeys: List<String> = listOf("h2")
+
+    override fun newInstance(key: String, options: Any, vararg extra: Any?): Storage {
+        options as EmbeddedDatabaseOptions
+        val dataFolder = extra.firstOrNull() as? File ?: throw IllegalArgumentException("Embedded storage requires the data folder")
+        val hikariConfig = getEmbeddedHikariConfig(File(dataFolder, options.location), options)
+        val storage = BackedStorage(ExposedBacking({ HikariDataSource(hikariConfig) }, options.poolSize, options.channelCapacity,
+            options.groupCommitSize, options.groupCommitMillis), spillFileIn(dataFolder))
+        return if (options.writeBehindMillis > 0) WriteBehindStorage(storage, options.writeBehindMillis) else storage
     }
 }
 
+private class LogFileStorageFactory : PolymorphicOptionsFactory<Storage> {
+    override val optionsClass = DataFileOptions::class
+    override val supportedKeys: List<String> = listOf("flatfile")
+
+    override fun newInstance(key: String, options: Any, vararg extra: Any?): Storage {
+        options as DataFileOptions
+        val dataFolder = extra.firstOrNull() as? File ?: throw IllegalArgumentException("Flat file storage requires the data folder")
+        return BackedStorage(LogFileBacking(File(dataFolder, options.location), options.syncIntervalMillis,
+            options.compactThresholdBytes, options.channelCapacity),
+            spillFileIn(dataFolder))
+    }
+}
+
+/**
+ * Options of an embedded database, which runs in the server process and is stored in the plugin's data folder.
+ */
+data class EmbeddedDatabaseOptions(val location: String = "parcels-database",
+                                   val cacheSizeKb: Int = 16384,
+                                   val writeDelayMillis: Int = 500,
+                                   val poolSize: Int = 4,
+                                   val channelCapacity: Int = 1024,
+                                   val groupCommitSize: Int = 128,
+                                   val groupCommitMillis: Long = 0,
+                                   val writeBehindMillis: Long = 500)
+
 data class DataConnectionOptions(val address: String = "localhost",
                                  val database: String = "parcels",
                                  val username: String = "root",
                                  val password: String = "",
-                                 val poolSize: Int = 4) {
+                                 val poolSize: Int = 4,
+                                 val channelCapacity: Int = 1024,
+                                 val groupCommitSize: Int = 128,
+                                 val groupCommitMillis: Long = 0,
+                                 val writeBehindMillis: Long = 500) {
 
     fun splitAddressAndPort(defaultPort: Int = 3306): Pair<String, Int>? {
         val idx = address.indexOf(":").takeUnless { it == -1 } ?: return Pair(address, defaultPort)
@@ -19,8 +19,18 @@ interface Backing {
 
     fun launchJob(job: Backing.() -> Unit): Job
 
+    /**
+     * Launches [job] such that it runs after every job launched before with the same [stripe].
+     * Jobs with different stripes may run in parallel.
+     */
+    fun launchJob(stripe: Int, job: Backing.() -> Unit): Job
+
     fun <T> launchFuture(future: Backing.() -> T): Deferred<T>
 
+    /**
+     * Opens a channel that is filled by [future], which closes it when it is done.
+     * The producer may block while the channel is full, so it must not hold resources that jobs need while it sends.
+     */
     fun <T> openChannel(future: Backing.(SendChannel<T>) -> Unit): ReceiveChannel<T>
 
     fun <T> openChannelForWriting(future: Backing.(T) -> Unit): SendChannel<T>
@@ -39,14 +49,23 @@ interface Backing {
 
     fun updatePlayerName(uuid: UUID, name: String)
 
+    fun transmitAllPlayerNames(channel: SendChannel<Pair<UUID, String>>)
+
     fun transmitParcelData(channel: SendChannel<DataPair>, parcels: Sequence<ParcelId>)
 
     fun transmitAllParcelData(channel: SendChannel<DataPair>)
 
+    fun transmitWorldParcelData(channel: SendChannel<DataPair>, world: ParcelWorldId)
+
     fun readParcelData(parcel: ParcelId): ParcelDataHolder?
 
     fun getOwnedParcels(user: PlayerProfile): List<ParcelId>
 
+    /**
+     * The keys of the parcels in [world] that have an owner, see [io.dico.parcels2.util.math.parcelKey]
+     */
+    fun getClaimedParcelKeys(world: ParcelWorldId): LongArray
+
     fun getNumParcels(user: PlayerProfile): Int = getOwnedParcels(user).size
 
 
@@ -0,0 +1,126 @@
+package io.dico.parcels2.storage
+
+import io.dico.parcels2.*
+import io.dico.parcels2.util.math.clampMax
+import io.dico.parcels2.util.math.fromParcelKey
+import io.dico.parcels2.util.math.parcelKey
+import org.joda.time.DateTime
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.util.UUID
+
+/*
+ * Binary encodings of parcel data, shared by the flat file storage and storage exports.
+ */
+
+private const val PROFILE_REAL = 0
+private const val PROFILE_FAKE = 1
+private const val PROFILE_NONE = 2
+private const val PROFILE_UNRESOLVED = 3
+
+internal fun DataOutputStream.writeUUID(uuid: UUID) {
+    writeLong(uuid.mostSignificantBits)
+    writeLong(uuid.leastSignificantBits)
+}
+
+internal fun DataInputStream.readUUID() = UUID(readLong(), readLong())
+
+internal fun DataOutputStream.writeWorld(world: ParcelWorldId) {
+    writeUTF(world.name)
+    writeBoolean(world.uid != null)
+    world.uid?.let { writeUUID(it) }
+}
+
+internal fun DataInputStream.readWorld(): ParcelWorldId {
+    val name = readUTF()
+    val uid = if (readBoolean()) readUUID() else null
+    return ParcelWorldId(name, uid)
+}
+
+internal fun DataOutputStream.writeParcel(parcel: ParcelId) {
+    writeWorld(parcel.worldId)
+    writeLong(parcelKey(parcel.x, parcel.z))
+}
+
+internal fun DataInputStream.readParcel(): ParcelId {
+    val world = readWorld()
+    val key = readLong()
+    return fromParcelKey(key) { x, z -> ParcelId(world, x, z) }
+}
+
+internal fun DataOutputStream.writeProfile(profile: PlayerProfile?) {
+    when (profile) {
+        null -> writeByte(PROFILE_NONE)
+        is PlayerProfile.Real -> {
+            writeByte(PROFILE_REAL)
+            writeUUID(profile.uuid)
+            writeBoolean(profile.name != null)
+            profile.name?.let { writeUTF(it) }
+        }
+        is PlayerProfile.Unresolved -> {
+            writeByte(PROFILE_UNRESOLVED)
+            writeUTF(profile.name)
+        }
+        else -> {
+            writeByte(PROFILE_FAKE)
+            writeUTF(profile.name!!)
+        }
+    }
+}
+
+internal fun DataInputStream.readProfile(): PlayerProfile? = when (readByte().toInt()) {
+    PROFILE_REAL -> {
+        val uuid = readUUID()
+        PlayerProfile.safe(uuid, if (readBoolean()) readUTF() else null)
+    }
+    PROFILE_FAKE -> PlayerProfile(readUTF())
+    PROFILE_UNRESOLVED -> PlayerProfile.Unresolved(readUTF())
+    else -> null
+}
+
+internal fun DataOutputStream.writeBitmask(config: InteractableConfiguration) {
+    val bitmask = (config as? BitmaskInteractableConfiguration)?.bitmaskArray ?: IntArray(0)
+    writeByte(bitmask.size)
+    bitmask.forEach { writeInt(it) }
+}
+
+internal fun DataInputStream.readBitmask(into: InteractableConfiguration) {
+    val bitmask = IntArray(readByte().toInt()) { readInt() }
+    val target = (into as? BitmaskInteractableConfiguration)?.bitmaskArray ?: return
+    target.fill(0)
+    System.arraycopy(bitmask, 0, target, 0, bitmask.size.clampMax(target.size))
+}
+
+internal fun DataOutputStream.writePrivileges(privileges: RawPrivileges) {
+    writeByte(privileges.privilegeOfStar.number)
+    writeInt(privileges.privilegeMap.size)
+    for ((key, privilege) in privileges.privilegeMap) {
+        writeProfile(key)
+        writeByte(privilege.number)
+    }
+}
+
+internal fun DataInputStream.readPrivileges(into: PrivilegesHolder) {
+    into.privilegeOfStar = Privilege.getByNumber(readByte().toInt()) ?: Privilege.DEFAULT
+    repeat(readInt()) {
+        val key = readProfile() as PlayerProfile.Real
+        val privilege = Privilege.getByNumber(readByte().toInt()) ?: return@repeat
+        into.setRawStoredPrivilege(key, privilege)
+    }
+}
+
+internal fun DataOutputStream.writeData(data: ParcelDataHolder) {
+    writeProfile(data.owner)
+    writeLong(data.lastClaimTime?.millis ?: -1L)
+    writeBoolean(data.isOwnerSignOutdated)
+    writeBitmask(data.interactableConfig)
+    writePrivileges(data)
+}
+
+internal fun DataInputStream.readData() = ParcelDataHolder().apply {
+    owner = readProfile()
+    lastClaimTime = readLong().let { if (it == -1L) null else DateTime(it) }
+    isOwnerSignOutdated = readBoolean()
+    readBitmask(interactableConfig)
+    readPrivileges(this)
+}
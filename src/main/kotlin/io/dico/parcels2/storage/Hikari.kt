@@ -2,6 +2,8 @@ package io.dico.parcels2.storage
 
 import com.zaxxer.hikari.HikariConfig
 import io.dico.parcels2.options.DataConnectionOptions
+import io.dico.parcels2.options.EmbeddedDatabaseOptions
+import java.io.File
 
 fun getHikariConfig(dialectName: String,
                     dco: DataConnectionOptions): HikariConfig = HikariConfig().apply {
@@ -14,6 +16,9 @@ fun getHikariConfig(dialectName: String,
             dataSourceProperties["serverName"] = address
             dataSourceProperties["portNumber"] = port.toString()
             dataSourceProperties["databaseName"] = dco.database
+            // statements are prepared on the server from their first use, and cached per connection
+            dataSourceProperties["prepareThreshold"] = "1"
+            dataSourceProperties["preparedStatementCacheQueries"] = "256"
         }
 
         "mariadb" -> run {
@@ -21,7 +26,8 @@ fun getHikariConfig(dialectName: String,
             dataSourceProperties["serverName"] = address
             dataSourceProperties["port"] = port.toString()
             dataSourceProperties["databaseName"] = dco.database
-            dataSourceProperties["properties"] = "useUnicode=true;characterEncoding=utf8"
+            dataSourceProperties["properties"] = "useUnicode=true;characterEncoding=utf8;" +
+                "useServerPrepStmts=true;cachePrepStmts=true;prepStmtCacheSize=256;prepStmtCacheSqlLimit=2048"
         }
 
         else -> throw IllegalArgumentException("Unsupported dialect: $dialectName")
@@ -71,3 +77,18 @@ fun getHikariConfig(dialectName: String,
 
     }*/
 }
+
+/**
+ * Returns a configuration for an embedded H2 database stored in the given [file].
+ * The database runs in MySQL compatibility mode, which allows the same upsert statements to be used as with MariaDB.
+ */
+fun getEmbeddedHikariConfig(file: File, options: EmbeddedDatabaseOptions): HikariConfig = HikariConfig().apply {
+    driverClassName = "org.h2.Driver"
+    // the MVStore engine is log structured, and WRITE_DELAY batches the writes of committed transactions to the file
+    jdbcUrl = "jdbc:h2:file:${file.absolutePath};MODE=MySQL;CACHE_SIZE=${options.cacheSizeKb};WRITE_DELAY=${options.writeDelayMillis};QUERY_CACHE_SIZE=64"
+
+    poolName = "parcels"
+    maximumPoolSize = options.poolSize
+    connectionTimeout = 15000
+    leakDetectionThreshold = 10000
+}
@@ -0,0 +1,294 @@
+package io.dico.parcels2.storage
+
+import io.dico.parcels2.*
+import io.dico.parcels2.defaultimpl.GlobalPrivilegesManagerImpl
+import io.dico.parcels2.defaultimpl.LazyParcelContainer
+import io.dico.parcels2.defaultimpl.DefaultParcelContainer
+import io.dico.parcels2.defaultimpl.SparseParcelContainer
+import io.dico.parcels2.util.math.Vec2i
+import io.dico.parcels2.util.math.clampMax
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import org.joda.time.DateTime
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.UUID
+
+private const val MAGIC = 0x50534E50 // PSNP
+private const val VERSION = 2
+
+private const val PROFILE_REAL: Byte = 0
+private const val PROFILE_FAKE: Byte = 1
+
+/**
+ * A binary snapshot of the parcel data of all worlds that keep their parcels in memory, and of all global privileges.
+ * It is written on shutdown, and allows the parcels to be protected on startup before the database is read.
+ * The file is deleted once it is read, such that a snapshot is only ever loaded if it was written by a clean shutdown
+ * since the last startup. After a crash, the database may hold changes that are newer than any snapshot.
+ *
+ * The file starts with a header that contains a table of all profiles, and the offset of each section.
+ * There is a section for the global privileges, and one for each world. Sections refer to profiles by their index in the table,
+ * which allows the sections to be decoded in parallel.
+ */
+class ParcelSnapshot(val plugin: ParcelsPlugin, val file: File) {
+
+    class Data(
+        val createdAt: DateTime,
+        /** The latest claim time of any parcel in the snapshot, in milliseconds */
+        val claimTimeMark: Long,
+        val worlds: Map<String, List<Pair<Vec2i, ParcelDataHolder>>>,
+        val globalPrivileges: List<PrivilegePair<PrivilegeKey>>
+    )
+
+    /**
+     * Captures the data of all worlds that keep their parcels in memory and writes it to the file.
+     * Must be called on the server thread, on shutdown. Does nothing if the data of some worlds is not loaded yet.
+     */
+    fun save() {
+        // a snapshot without the data of some worlds would replace a complete one
+        val worlds = plugin.parcelProvider.worlds.values
+        if (worlds.isEmpty() || worlds.any { !it.isReady }) return
+
+        val bytes = try {
+            encode()
+        } catch (ex: Exception) {
+            logger.error("Failed to capture the parcel snapshot", ex)
+            return
+        }
+
+        writeFile(bytes)
+    }
+
+    private fun writeFile(bytes: ByteArray) {
+        try {
+            file.parentFile.mkdirs()
+            val temp = File(file.parentFile, file.name + ".tmp")
+            temp.writeBytes(bytes)
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (ex: Exception) {
+            logger.error("Failed to write the parcel snapshot to ${file.canonicalPath}", ex)
+        }
+    }
+
+    private fun parcelsOf(world: ParcelWorld): Iterator<Parcel>? = when (val container = world.container) {
+        is DefaultParcelContainer -> container.getAllParcels()
+        is SparseParcelContainer -> container.getAllParcels()
+        else -> null
+    }
+
+    private fun encode(): ByteArray {
+        val profiles = ProfileTable()
+        var claimTimeMark = 0L
+
+        fun DataOutputStream.writePrivileges(privileges: RawPrivileges) {
+            writeByte(privileges.privilegeOfStar.number)
+            writeInt(privileges.privilegeMap.size)
+            for ((key, privilege) in privileges.privilegeMap) {
+                writeInt(profiles.indexOf(key))
+                writeByte(privilege.number)
+            }
+        }
+
+        val sections = ArrayList<Pair<String, ByteArray>>()
+
+        val globals = (plugin.globalPrivileges as GlobalPrivilegesManagerImpl).getAll()
+            .filter { it.hasAnyDeclaredPrivileges() }
+        sections += "" to encodeSection {
+            writeInt(globals.size)
+            for (privileges in globals) {
+                writeInt(profiles.indexOf(privileges.keyOfOwner))
+                writePrivileges(privileges)
+            }
+        }
+
+        for (world in plugin.parcelProvider.worlds.values) {
+            if (world.container is LazyParcelContainer) continue
+            val parcels = parcelsOf(world)?.asSequence()
+                ?.filter { it.owner != null || it.hasAnyDeclaredPrivileges() || !it.interactableConfig.isDefault() }
+                ?.toList() ?: continue
+
+            sections += world.name to encodeSection {
+                writeInt(parcels.size)
+                for (parcel in parcels) {
+                    val data = parcel.data
+                    writeInt(parcel.x)
+                    writeInt(parcel.z)
+                    writeInt(data.owner?.let { profiles.indexOf(it) } ?: -1)
+                    val claimTime = data.lastClaimTime?.millis ?: -1L
+                    if (claimTime > claimTimeMark) claimTimeMark = claimTime
+                    writeLong(claimTime)
+                    writeBoolean(data.isOwnerSignOutdated)
+
+                    val bitmask = (data.interactableConfig as? BitmaskInteractableConfiguration)?.bitmaskArray ?: IntArray(0)
+                    writeByte(bitmask.size)
+                    bitmask.forEach { writeInt(it) }
+
+                    writePrivileges(data)
+                }
+            }
+        }
+
+        val out = ByteArrayOutputStream()
+        with(DataOutputStream(out)) {
+            writeInt(MAGIC)
+            writeInt(VERSION)
+            writeLong(System.currentTimeMillis())
+            writeLong(claimTimeMark)
+
+            writeInt(profiles.profiles.size)
+            for (profile in profiles.profiles) {
+                if (profile is PlayerProfile.Real) {
+                    writeByte(PROFILE_REAL.toInt())
+                    writeLong(profile.uuid.mostSignificantBits)
+                    writeLong(profile.uuid.leastSignificantBits)
+                } else {
+                    writeByte(PROFILE_FAKE.toInt())
+                }
+                writeString(profile.name)
+            }
+
+            // offsets are relative to the end of the header
+            writeInt(sections.size)
+            var offset = 0
+            for ((name, bytes) in sections) {
+                writeString(name)
+                writeInt(offset)
+                writeInt(bytes.size)
+                offset += bytes.size
+            }
+
+            sections.forEach { write(it.second) }
+            flush()
+        }
+        return out.toByteArray()
+    }
+
+    private inline fun encodeSection(block: DataOutputStream.() -> Unit): ByteArray {
+        val out = ByteArrayOutputStream()
+        DataOutputStream(out).apply(block).flush()
+        return out.toByteArray()
+    }
+
+    private class ProfileTable {
+        val profiles = ArrayList<PlayerProfile>()
+        private val indices = HashMap<Any, Int>()
+
+        fun indexOf(profile: PlayerProfile): Int {
+            // PlayerProfile.hashCode is not consistent with equals for fake profiles
+            val key = profile.uuid ?: profile.name!!.toLowerCase()
+            return indices.getOrPut(key) { profiles.add(profile); profiles.size - 1 }
+        }
+    }
+
+    /**
+     * Reads the snapshot, decoding its sections in parallel, and deletes the file.
+     * Returns null if there is no snapshot or it can not be read.
+     */
+    suspend fun read(): Data? {
+        if (!file.exists()) return null
+        return try {
+            // the file is read onto the heap rather than mapped, as a mapping is only released when it is collected
+            val buffer = ByteBuffer.wrap(file.readBytes())
+            decode(buffer)
+        } catch (ex: Exception) {
+            logger.error("Failed to read the parcel snapshot from ${file.canonicalPath}", ex)
+            null
+        } finally {
+            if (!file.delete()) logger.warn("Failed to delete the parcel snapshot at ${file.canonicalPath}")
+        }
+    }
+
+    private suspend fun decode(buffer: ByteBuffer): Data? {
+        if (buffer.int != MAGIC || buffer.int != VERSION) {
+            logger.warn("Ignoring the parcel snapshot because its format is not supported")
+            return null
+        }
+
+        val createdAt = DateTime(buffer.long)
+        val claimTimeMark = buffer.long
+
+        val profiles = Array(buffer.int) {
+            val kind = buffer.get()
+            val uuid = if (kind == PROFILE_REAL) UUID(buffer.long, buffer.long) else null
+            val name = buffer.getString()
+            if (uuid != null) PlayerProfile.Real.safe(uuid, name)!! else PlayerProfile.Fake(name!!)
+        }
+
+        val sections = Array(buffer.int) { Triple(buffer.getString() ?: "", buffer.int, buffer.int) }
+        val dataStart = buffer.position()
+
+        fun section(offset: Int, length: Int): ByteBuffer {
+            val duplicate = buffer.duplicate()
+            duplicate.position(dataStart + offset)
+            duplicate.limit(dataStart + offset + length)
+            return duplicate.slice()
+        }
+
+        fun ByteBuffer.getPrivileges(into: PrivilegesHolder) {
+            into.privilegeOfStar = Privilege.getByNumber(get().toInt()) ?: Privilege.DEFAULT
+            repeat(int) {
+                val key = profiles[int] as PrivilegeKey
+                val privilege = Privilege.getByNumber(get().toInt()) ?: return@repeat
+                into.setRawStoredPrivilege(key, privilege)
+            }
+        }
+
+        val (globalSection, worldSections) = sections.partition { it.first.isEmpty() }
+
+        return coroutineScope {
+            val globalPrivileges = async(Dispatchers.Default) {
+                globalSection.flatMap { (_, offset, length) ->
+                    val section = section(offset, length)
+                    List(section.int) { section.int.let { profiles[it] as PrivilegeKey } to PrivilegesHolder().apply { section.getPrivileges(this) } }
+                }
+            }
+
+            val worlds = worldSections.map { (name, offset, length) ->
+                async(Dispatchers.Default) {
+                    val section = section(offset, length)
+                    name to List(section.int) {
+                        val pos = Vec2i(section.int, section.int)
+                        pos to ParcelDataHolder().apply {
+                            owner = section.int.let { if (it == -1) null else profiles[it] }
+                            lastClaimTime = section.long.let { if (it == -1L) null else DateTime(it) }
+                            isOwnerSignOutdated = section.get() != 0.toByte()
+
+                            val bitmask = IntArray(section.get().toInt()) { section.int }
+                            val target = (interactableConfig as? BitmaskInteractableConfiguration)?.bitmaskArray
+                            if (target != null) System.arraycopy(bitmask, 0, target, 0, bitmask.size.clampMax(target.size))
+
+                            section.getPrivileges(this)
+                        }
+                    }
+                }
+            }
+
+            Data(createdAt, claimTimeMark, worlds.awaitAll().toMap(), globalPrivileges.await())
+        }
+    }
+
+}
+
+private fun DataOutputStream.writeString(string: String?) {
+    if (string == null) {
+        writeShort(-1)
+        return
+    }
+    val bytes = string.toByteArray(Charsets.UTF_8)
+    writeShort(bytes.size)
+    write(bytes)
+}
+
+private fun ByteBuffer.getString(): String? {
+    val length = short.toInt()
+    if (length == -1) return null
+    val bytes = ByteArray(length)
+    get(bytes)
+    return String(bytes, Charsets.UTF_8)
+}
@@ -0,0 +1,67 @@
+package io.dico.parcels2.storage
+
+import io.dico.parcels2.PlayerProfile
+import io.dico.parcels2.RawPrivileges
+import java.util.UUID
+
+/**
+ * A case-insensitive cache of the uuids of player names.
+ *
+ * Names are added when a player's name is updated and when profiles are loaded in bulk.
+ * Names that are not known to storage are cached for [missMillis], such that misspelled names don't query storage every time.
+ * At most [capacity] names and [capacity] misses are cached, the least recently used names and the oldest misses are removed first.
+ */
+class PlayerNameCache(val capacity: Int = 8192, val missMillis: Long = 60_000) {
+    private val uuids = object : LinkedHashMap<String, UUID>(256, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, UUID>?): Boolean {
+            if (size <= capacity) return false
+            eldest?.let { names.remove(it.value) }
+            return true
+        }
+    }
+    private val names = HashMap<UUID, String>()
+    // in the order they were cached, such that the oldest miss is removed when another is cached, if it expired or the map is full
+    private val misses = object : LinkedHashMap<String, Long>() {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Long>?): Boolean =
+            size > capacity || (eldest != null && System.currentTimeMillis() - eldest.value >= missMillis)
+    }
+
+    /**
+     * Returns the cached uuid of the given name, or null if it is not cached.
+     * A cached miss is returned as a null uuid.
+     */
+    fun get(name: String): Result? = synchronized(this) {
+        val key = name.toLowerCase()
+        uuids[key]?.let { return Result(it) }
+        val missTime = misses[key] ?: return null
+        if (System.currentTimeMillis() - missTime < missMillis) return Result(null)
+        misses.remove(key)
+        return null
+    }
+
+    fun put(name: String, uuid: UUID?) = synchronized(this) {
+        val key = name.toLowerCase()
+        if (uuid == null) {
+            misses.remove(key)
+            misses[key] = System.currentTimeMillis()
+            return
+        }
+
+        // the previous name of the player might be taken by someone else
+        names.put(uuid, key)?.let { if (it != key) uuids.remove(it) }
+        uuids[key] = uuid
+        misses.remove(key)
+    }
+
+    fun put(profile: PlayerProfile?) {
+        if (profile is PlayerProfile.Real && profile !is PlayerProfile.Star) {
+            profile.name?.let { put(it, profile.uuid) }
+        }
+    }
+
+    fun putAll(privileges: RawPrivileges) {
+        privileges.privilegeMap.keys.forEach { put(it) }
+    }
+
+    class Result(val uuid: UUID?)
+}
@@ -3,24 +3,79 @@
 package io.dico.parcels2.storage
 
 import io.dico.parcels2.*
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
 import kotlinx.coroutines.channels.ReceiveChannel
 import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
 import org.joda.time.DateTime
+import java.io.DataOutputStream
+import java.util.Collections
+import java.util.IdentityHashMap
 import java.util.UUID
+import java.util.WeakHashMap
+import java.util.concurrent.ConcurrentSkipListMap
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.coroutines.CoroutineContext
 
 typealias DataPair = Pair<ParcelId, ParcelDataHolder?>
 typealias PrivilegePair<TAttach> = Pair<TAttach, PrivilegesHolder>
 
+/**
+ * The stripe of writes to this parcel, see [Backing.launchJob]
+ */
+internal val ParcelId.stripe: Int
+    get() = (worldId.name.hashCode() * 31 + x) * 31 + z
+
+/**
+ * The stripe of writes to the global privileges of this profile, see [Backing.launchJob]
+ */
+internal val PlayerProfile.stripe: Int
+    get() = uuid?.hashCode() ?: name!!.toLowerCase().hashCode()
+
+/**
+ * Passes every element of this channel to [action]. Elements that are already buffered are taken without suspending,
+ * until [budgetMillis] have passed in the current tick, after which the consumer resumes on the next tick.
+ * Must be called on the server thread.
+ */
+suspend inline fun <E : Any> ReceiveChannel<E>.receiveWithinBudget(budgetMillis: Int, action: (E) -> Unit) {
+    var tickStart = System.currentTimeMillis()
+    while (true) {
+        val element = poll() ?: (receiveOrNull() ?: return).also { tickStart = System.currentTimeMillis() }
+        action(element)
+
+        if (System.currentTimeMillis() - tickStart >= budgetMillis) {
+            delay(1) // resumes on the next tick
+            tickStart = System.currentTimeMillis()
+        }
+    }
+}
+
+/**
+ * The [BackedStorage] that this storage is or wraps, if any
+ */
+val Storage.backedStorage: BackedStorage?
+    get() = when (this) {
+        is BackedStorage -> this
+        is WriteBehindStorage -> delegate
+        else -> null
+    }
+
 interface Storage {
     val name: String
     val isConnected: Boolean
 
-    fun init(): Job
+    /**
+     * Connects to storage. The returned [Deferred] rethrows the failure to connect when it is awaited.
+     */
+    fun init(): Deferred<Unit>
 
     fun shutdown(): Job
 
@@ -33,19 +88,31 @@ interface Storage {
 
     fun updatePlayerName(uuid: UUID, name: String): Job
 
+    fun transmitAllPlayerNames(): ReceiveChannel<Pair<UUID, String>>
+
     fun readParcelData(parcel: ParcelId): Deferred<ParcelDataHolder?>
 
     fun transmitParcelData(parcels: Sequence<ParcelId>): ReceiveChannel<DataPair>
 
     fun transmitAllParcelData(): ReceiveChannel<DataPair>
 
+    fun transmitWorldParcelData(world: ParcelWorldId): ReceiveChannel<DataPair>
+
     fun getOwnedParcels(user: PlayerProfile): Deferred<List<ParcelId>>
 
+    fun getClaimedParcelKeys(world: ParcelWorldId): Deferred<LongArray>
+
     fun getNumParcels(user: PlayerProfile): Deferred<Int>
 
 
     fun setParcelData(parcel: ParcelId, data: ParcelDataHolder?): Job
 
+    /**
+     * Sets the data of all given parcels in one job, which runs in a single transaction where the backing supports it.
+     * The job is not ordered with respect to the other writes to these parcels.
+     */
+    fun setParcelDataBatch(data: List<Pair<ParcelId, ParcelDataHolder>>): Job
+
     fun setParcelOwner(parcel: ParcelId, owner: PlayerProfile?): Job
 
     fun setParcelOwnerSignOutdated(parcel: ParcelId, outdated: Boolean): Job
@@ -65,50 +132,250 @@ interface Storage {
     fun getChannelToUpdateParcelData(): SendChannel<Pair<ParcelId, ParcelDataHolder>>
 }
 
-class BackedStorage internal constructor(val b: Backing) : Storage, CoroutineScope {
+/**
+ * @param spillFile the file that the writes which are pending on shutdown are spilled to, and replayed from by [init]
+ * @param drainMillis the time that [shutdown] waits for pending writes to complete before spilling them
+ */
+class BackedStorage internal constructor(val b: Backing,
+                                         val spillFile: WriteSpillFile? = null,
+                                         val drainMillis: Long = 10_000) : Storage, CoroutineScope {
     override val name get() = b.name
     override val isConnected get() = b.isConnected
     override val coroutineContext: CoroutineContext get() = b.coroutineContext
+    val metrics = StorageMetrics()
+    val nameCache = PlayerNameCache()
+
+    // the writes that did not complete yet by the order in which they were launched, with the function that spills them
+    private val pendingWrites = ConcurrentSkipListMap<Long, DataOutputStream.() -> Unit>()
+    private val writeSequence = AtomicLong()
+
+    val pendingWriteCount: Int get() = pendingWrites.size
+
+    // the channels that were opened for reading, which are cancelled on shutdown
+    private val openChannels = Collections.newSetFromMap(WeakHashMap<ReceiveChannel<*>, Boolean>())
+
+    override fun init(): Deferred<Unit> = async {
+        b.init()
+
+        // spilled writes are written before any data is read
+        try {
+            spillFile?.replay(this@BackedStorage)
+        } catch (ex: Exception) {
+            logger.error("Failed to replay the writes spilled to ${spillFile!!.file.canonicalPath}, they are replayed on the next startup", ex)
+        }
+    }
+
+    /**
+     * Waits up to [drainMillis] for the pending writes to complete, spills the writes that did not, and shuts down the backing.
+     * The channels opened for reading are cancelled first, as their consumers on the server thread cannot receive
+     * while it waits for the shutdown, and their producers would block until the drain times out.
+     * The drain does not run in the scope of the backing, which is cancelled when the backing shuts down.
+     */
+    override fun shutdown() = GlobalScope.launch(Dispatchers.Default) {
+        val channels = synchronized(openChannels) { openChannels.toList().also { openChannels.clear() } }
+        channels.forEach { it.cancel() }
+
+        withTimeoutOrNull(drainMillis) {
+            while (pendingWrites.isNotEmpty()) delay(10)
+        }
+        spillPendingWrites()
+        b.shutdown()
+    }
+
+    private fun spillPendingWrites() {
+        val writes = pendingWrites.values.toList()
+        if (writes.isEmpty()) return
+
+        if (spillFile == null) {
+            logger.error("${writes.size} writes did not complete before shutdown and are lost")
+            return
+        }
+
+        try {
+            spillFile.append(writes)
+            logger.warn("${writes.size} writes did not complete before shutdown, they were spilled to ${spillFile.file.canonicalPath} to be written on the next startup")
+        } catch (ex: Exception) {
+            logger.error("Failed to spill ${writes.size} writes that did not complete before shutdown, they are lost", ex)
+        }
+    }
+
+    private fun beginWrite(spill: DataOutputStream.() -> Unit): Long {
+        val sequence = writeSequence.incrementAndGet()
+        pendingWrites[sequence] = spill
+        return sequence
+    }
+
+    private fun endWrite(sequence: Long) {
+        pendingWrites.remove(sequence)
+    }
+
+    private inline fun trackWrite(noinline spill: DataOutputStream.() -> Unit, start: () -> Job): Job {
+        val sequence = beginWrite(spill)
+        val job = try {
+            start()
+        } catch (ex: Throwable) {
+            endWrite(sequence)
+            throw ex
+        }
+        job.invokeOnCompletion { endWrite(sequence) }
+        return job
+    }
+
+    private inline fun launchJob(operation: String, noinline spill: DataOutputStream.() -> Unit, crossinline job: Backing.() -> Unit): Job {
+        val metrics = metrics[operation]
+        val queuedAt = System.nanoTime()
+        return trackWrite(spill) { b.launchJob { metrics.record(queuedAt) { job() } } }
+    }
+
+    private inline fun launchJob(operation: String, stripe: Int, noinline spill: DataOutputStream.() -> Unit, crossinline job: Backing.() -> Unit): Job {
+        val metrics = metrics[operation]
+        val queuedAt = System.nanoTime()
+        return trackWrite(spill) { b.launchJob(stripe) { metrics.record(queuedAt) { job() } } }
+    }
+
+    /**
+     * Launches a write of [WriteBehindStorage] in the given [stripe], which is spilled by [spill] if it does not complete before shutdown.
+     */
+    internal fun launchWrite(operation: String, stripe: Int, spill: DataOutputStream.() -> Unit, job: Backing.() -> Unit): Job =
+        launchJob(operation, stripe, spill) { job() }
+
+    private inline fun <T> launchFuture(operation: String, crossinline future: Backing.() -> T): Deferred<T> {
+        val metrics = metrics[operation]
+        val queuedAt = System.nanoTime()
+        return b.launchFuture { metrics.record(queuedAt) { future() } }
+    }
+
+    /**
+     * Opens a channel that is filled by [future]. Elements sent by it are passed to [observe] if it is not null.
+     */
+    private inline fun <T> openChannel(operation: String, noinline observe: ((T) -> Unit)? = null,
+                                       crossinline future: Backing.(SendChannel<T>) -> Unit): ReceiveChannel<T> {
+        val metrics = metrics[operation]
+        val queuedAt = System.nanoTime()
+        val channel = b.openChannel<T> { channel ->
+            metrics.record(queuedAt) { future(if (observe == null) channel else ObservedSendChannel(channel, observe)) }
+        }
+        synchronized(openChannels) { openChannels.add(channel) }
+        return channel
+    }
+
+    private class ObservedSendChannel<T>(val channel: SendChannel<T>, val observe: (T) -> Unit) : SendChannel<T> by channel {
+        override suspend fun send(element: T) {
+            channel.send(element)
+            observe(element)
+        }
+
+        override fun offer(element: T): Boolean = channel.offer(element).also { if (it) observe(element) }
+    }
+
+    // names of profiles that are loaded in bulk are cached, such that commands that take them don't query storage
+    private fun cacheNames(pair: DataPair) {
+        val data = pair.second ?: return
+        nameCache.put(data.owner)
+        nameCache.putAll(data)
+    }
+
+    private fun cacheNames(pair: PrivilegePair<PlayerProfile>) {
+        nameCache.put(pair.first)
+        nameCache.putAll(pair.second)
+    }
+
+
+    override fun getWorldCreationTime(worldId: ParcelWorldId): Deferred<DateTime?> = launchFuture("getWorldCreationTime") { b.getWorldCreationTime(worldId) }
+
+    override fun setWorldCreationTime(worldId: ParcelWorldId, time: DateTime): Job = launchJob("setWorldCreationTime", { spillWorldCreationTime(worldId, time) }) { b.setWorldCreationTime(worldId, time) }
+
+    override fun getPlayerUuidForName(name: String): Deferred<UUID?> {
+        nameCache.get(name)?.let { return CompletableDeferred(it.uuid) }
+        return launchFuture("getPlayerUuidForName") { b.getPlayerUuidForName(name).also { nameCache.put(name, it) } }
+    }
+
+    override fun updatePlayerName(uuid: UUID, name: String): Job {
+        nameCache.put(name, uuid)
+        return launchJob("updatePlayerName", uuid.hashCode(), { spillPlayerName(uuid, name) }) { b.updatePlayerName(uuid, name) }
+    }
+
+    override fun transmitAllPlayerNames() = openChannel<Pair<UUID, String>>("transmitAllPlayerNames") { b.transmitAllPlayerNames(it) }
+
+    override fun readParcelData(parcel: ParcelId) = launchFuture("readParcelData") { b.readParcelData(parcel) }
+
+    override fun transmitParcelData(parcels: Sequence<ParcelId>) = openChannel<DataPair>("transmitParcelData") { b.transmitParcelData(it, parcels) }
+
+    override fun transmitAllParcelData() = openChannel<DataPair>("transmitAllParcelData", ::cacheNames) { b.transmitAllParcelData(it) }
+
+    override fun transmitWorldParcelData(world: ParcelWorldId) = openChannel<DataPair>("transmitWorldParcelData", ::cacheNames) { b.transmitWorldParcelData(it, world) }
+
+    override fun getOwnedParcels(user: PlayerProfile) = launchFuture("getOwnedParcels") { b.getOwnedParcels(user) }
+
+    override fun getClaimedParcelKeys(world: ParcelWorldId) = launchFuture("getClaimedParcelKeys") { b.getClaimedParcelKeys(world) }
+
+    override fun getNumParcels(user: PlayerProfile) = launchFuture("getNumParcels") { b.getNumParcels(user) }
+
+    override fun setParcelData(parcel: ParcelId, data: ParcelDataHolder?) = launchJob("setParcelData", parcel.stripe, { spillParcelData(parcel, data) }) { b.setParcelData(parcel, data) }
+
+    override fun setParcelDataBatch(data: List<Pair<ParcelId, ParcelDataHolder>>) = launchJob("setParcelDataBatch", { for ((parcel, parcelData) in data) spillParcelData(parcel, parcelData) }) {
+        for ((parcel, parcelData) in data) b.setParcelData(parcel, parcelData)
+    }
+
+    override fun setParcelOwner(parcel: ParcelId, owner: PlayerProfile?) = launchJob("setParcelOwner", parcel.stripe, { spillParcelOwner(parcel, owner) }) { b.setParcelOwner(parcel, owner) }
+
+    override fun setParcelOwnerSignOutdated(parcel: ParcelId, outdated: Boolean): Job = launchJob("setParcelOwnerSignOutdated", parcel.stripe, { spillParcelOwnerSignOutdated(parcel, outdated) }) { b.setParcelOwnerSignOutdated(parcel, outdated) }
+
+    override fun setLocalPrivilege(parcel: ParcelId, player: PlayerProfile, privilege: Privilege) = launchJob("setLocalPrivilege", parcel.stripe, { spillLocalPrivilege(parcel, player, privilege) }) { b.setLocalPrivilege(parcel, player, privilege) }
+
+    override fun setParcelOptionsInteractConfig(parcel: ParcelId, config: InteractableConfiguration) = launchJob("setParcelOptionsInteractConfig", parcel.stripe, { spillParcelInteractConfig(parcel, config) }) { b.setParcelOptionsInteractConfig(parcel, config) }
+
+
+    override fun transmitAllGlobalPrivileges(): ReceiveChannel<PrivilegePair<PlayerProfile>> = openChannel<PrivilegePair<PlayerProfile>>("transmitAllGlobalPrivileges", ::cacheNames) { b.transmitAllGlobalPrivileges(it) }
+
+    override fun readGlobalPrivileges(owner: PlayerProfile): Deferred<PrivilegesHolder?> = launchFuture("readGlobalPrivileges") { b.readGlobalPrivileges(owner) }
+
+    override fun setGlobalPrivilege(owner: PlayerProfile, player: PlayerProfile, privilege: Privilege) = launchJob("setGlobalPrivilege", owner.stripe, { spillGlobalPrivilege(owner, player, privilege) }) { b.setGlobalPrivilege(owner, player, privilege) }
+
+    override fun getChannelToUpdateParcelData(): SendChannel<Pair<ParcelId, ParcelDataHolder>> {
+        val metrics = metrics["setParcelData (channel)"]
+        val depth = this.metrics.writeChannelDepth
+
+        // the pending writes of the items in the channel, by identity. An item that is sent again while it is pending is spilled once
+        val sequences = IdentityHashMap<Pair<ParcelId, ParcelDataHolder>, Long>()
+        fun track(element: Pair<ParcelId, ParcelDataHolder>) = synchronized(sequences) {
+            if (element !in sequences) sequences[element] = beginWrite { spillParcelData(element.first, element.second) }
+        }
+        fun untrack(element: Pair<ParcelId, ParcelDataHolder>) = synchronized(sequences) { sequences.remove(element) }?.let { endWrite(it) }
+
+        val channel = b.openChannelForWriting<Pair<ParcelId, ParcelDataHolder>> {
+            try {
+                metrics.record(System.nanoTime()) { b.setParcelData(it.first, it.second) }
+            } finally {
+                depth.decrementAndGet()
+                untrack(it)
+            }
+        }
 
-    override fun init() = launch { b.init() }
-
-    override fun shutdown() = launch { b.shutdown() }
-
-
-    override fun getWorldCreationTime(worldId: ParcelWorldId): Deferred<DateTime?> = b.launchFuture { b.getWorldCreationTime(worldId) }
-
-    override fun setWorldCreationTime(worldId: ParcelWorldId, time: DateTime): Job = b.launchJob { b.setWorldCreationTime(worldId, time) }
-
-    override fun getPlayerUuidForName(name: String): Deferred<UUID?> = b.launchFuture { b.getPlayerUuidForName(name) }
-
-    override fun updatePlayerName(uuid: UUID, name: String): Job = b.launchJob { b.updatePlayerName(uuid, name) }
-
-    override fun readParcelData(parcel: ParcelId) = b.launchFuture { b.readParcelData(parcel) }
-
-    override fun transmitParcelData(parcels: Sequence<ParcelId>) = b.openChannel<DataPair> { b.transmitParcelData(it, parcels) }
-
-    override fun transmitAllParcelData() = b.openChannel<DataPair> { b.transmitAllParcelData(it) }
-
-    override fun getOwnedParcels(user: PlayerProfile) = b.launchFuture { b.getOwnedParcels(user) }
-
-    override fun getNumParcels(user: PlayerProfile) = b.launchFuture { b.getNumParcels(user) }
-
-    override fun setParcelData(parcel: ParcelId, data: ParcelDataHolder?) = b.launchJob { b.setParcelData(parcel, data) }
-
-    override fun setParcelOwner(parcel: ParcelId, owner: PlayerProfile?) = b.launchJob { b.setParcelOwner(parcel, owner) }
-
-    override fun setParcelOwnerSignOutdated(parcel: ParcelId, outdated: Boolean): Job = b.launchJob { b.setParcelOwnerSignOutdated(parcel, outdated) }
-
-    override fun setLocalPrivilege(parcel: ParcelId, player: PlayerProfile, privilege: Privilege) = b.launchJob { b.setLocalPrivilege(parcel, player, privilege) }
-
-    override fun setParcelOptionsInteractConfig(parcel: ParcelId, config: InteractableConfiguration) = b.launchJob { b.setParcelOptionsInteractConfig(parcel, config) }
-
-
-    override fun transmitAllGlobalPrivileges(): ReceiveChannel<PrivilegePair<PlayerProfile>> = b.openChannel { b.transmitAllGlobalPrivileges(it) }
-
-    override fun readGlobalPrivileges(owner: PlayerProfile): Deferred<PrivilegesHolder?> = b.launchFuture { b.readGlobalPrivileges(owner) }
-
-    override fun setGlobalPrivilege(owner: PlayerProfile, player: PlayerProfile, privilege: Privilege) = b.launchJob { b.setGlobalPrivilege(owner, player, privilege) }
+        // counts the items that are sent to the channel, to keep track of its depth
+        return object : SendChannel<Pair<ParcelId, ParcelDataHolder>> by channel {
+            override suspend fun send(element: Pair<ParcelId, ParcelDataHolder>) {
+                depth.incrementAndGet()
+                track(element)
+                try {
+                    channel.send(element)
+                } catch (ex: Throwable) {
+                    depth.decrementAndGet()
+                    untrack(element)
+                    throw ex
+                }
+            }
 
-    override fun getChannelToUpdateParcelData(): SendChannel<Pair<ParcelId, ParcelDataHolder>> = b.openChannelForWriting { b.setParcelData(it.first, it.second) }
+            override fun offer(element: Pair<ParcelId, ParcelDataHolder>): Boolean {
+                depth.incrementAndGet()
+                track(element)
+                return channel.offer(element).also {
+                    if (!it) {
+                        depth.decrementAndGet()
+                        untrack(element)
+                    }
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,90 @@
+package io.dico.parcels2.storage
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * The upper bounds, in microseconds, of the buckets of the execution time histograms. The last bucket has no upper bound.
+ */
+private val histogramBounds = longArrayOf(100, 1_000, 10_000, 100_000, 1_000_000)
+
+/**
+ * Records how long storage operations wait before they run and how long they take, for each operation.
+ */
+class StorageMetrics {
+    private val operations = ConcurrentHashMap<String, OperationMetrics>()
+
+    /**
+     * The number of items sent to channels opened for writing that were not processed yet.
+     */
+    val writeChannelDepth = AtomicInteger()
+
+    operator fun get(operation: String): OperationMetrics = operations.getOrPut(operation) { OperationMetrics(operation) }
+
+    val all: List<OperationMetrics> get() = operations.values.sortedBy { it.name }
+
+    class OperationMetrics(val name: String) {
+        val count = AtomicLong()
+        val errors = AtomicLong()
+        val totalWaitNanos = AtomicLong()
+        val maxWaitNanos = AtomicLong()
+        val totalTimeNanos = AtomicLong()
+        val histogram = AtomicLongArray(histogramBounds.size + 1)
+
+        /**
+         * Runs [block], recording the time since [queuedAt] as its wait and the time it takes as its execution time.
+         * An exception thrown by [block] is counted as an error and rethrown.
+         */
+        inline fun <T> record(queuedAt: Long, block: () -> T): T {
+            val startedAt = System.nanoTime()
+            try {
+                return block()
+            } catch (ex: Throwable) {
+                errors.incrementAndGet()
+                throw ex
+            } finally {
+                recordTimes(startedAt - queuedAt, System.nanoTime() - startedAt)
+            }
+        }
+
+        fun recordTimes(waitNanos: Long, timeNanos: Long) {
+            count.incrementAndGet()
+            totalWaitNanos.addAndGet(waitNanos)
+            maxWaitNanos.accumulateAndGet(waitNanos) { a, b -> maxOf(a, b) }
+            totalTimeNanos.addAndGet(timeNanos)
+
+            val micros = timeNanos / 1000
+            var bucket = histogramBounds.indexOfFirst { micros < it }
+            if (bucket == -1) bucket = histogramBounds.size
+            histogram.incrementAndGet(bucket)
+        }
+
+        val averageWaitMillis: Double get() = count.get().let { if (it == 0L) 0.0 else totalWaitNanos.get() / it / 1e6 }
+        val averageTimeMillis: Double get() = count.get().let { if (it == 0L) 0.0 else totalTimeNanos.get() / it / 1e6 }
+
+        fun toMap(): Map<String, Any> = linkedMapOf(
+            "count" to count.get(),
+            "errors" to errors.get(),
+            "average-wait-millis" to averageWaitMillis,
+            "max-wait-millis" to maxWaitNanos.get() / 1e6,
+            "average-time-millis" to averageTimeMillis,
+            "time-histogram" to histogramLabels.zip(List(histogram.length()) { histogram.get(it) }).toMap()
+        )
+    }
+
+    companion object {
+        val histogramLabels: List<String> = histogramBounds.map { "<${formatMicros(it)}" } + ">=${formatMicros(histogramBounds.last())}"
+
+        private fun formatMicros(micros: Long) = if (micros < 1000) "${micros}us" else if (micros < 1_000_000) "${micros / 1000}ms" else "${micros / 1_000_000}s"
+    }
+
+    /**
+     * Returns all metrics in a form that can be serialized.
+     */
+    fun toMap(): Map<String, Any> = linkedMapOf(
+        "write-channel-depth" to writeChannelDepth.get(),
+        "operations" to all.associate { it.name to it.toMap() }
+    )
+}
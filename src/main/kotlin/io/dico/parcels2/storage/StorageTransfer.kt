@@ -0,0 +1,182 @@
+package io.dico.parcels2.storage
+
+import io.dico.parcels2.*
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.joinAll
+import java.io.*
+import java.util.zip.GZIPInputStream
+import java.util.zip.GZIPOutputStream
+
+private const val MAGIC = 0x50455850 // PEXP
+private const val VERSION = 1
+
+private const val RECORD_PLAYER_NAME = 1
+private const val RECORD_PARCEL = 2
+private const val RECORD_GLOBAL_PRIVILEGES = 3
+private const val RECORD_END = 0
+
+private const val BATCH_SIZE = 512
+
+private const val SCHEDULED_IMPORT_FILE_NAME = "scheduled-import.txt"
+
+/**
+ * The number of records of each kind in an export.
+ */
+data class TransferCounts(val playerNames: Int, val parcels: Int, val globalPrivileges: Int) {
+    override fun toString() = "$playerNames player names, $parcels parcels and $globalPrivileges global privilege owners"
+}
+
+/**
+ * Writes the player names, parcel data and global privileges of [storage] to [file].
+ *
+ * The file is a gzip compressed stream of records, each starting with its kind. Records are written as they are received
+ * from storage, such that the memory used does not depend on the amount of data. The last record holds the number of
+ * records of each kind, which lets an import tell a complete file from a truncated one.
+ */
+suspend fun exportStorage(storage: Storage, file: File): TransferCounts {
+    var playerNames = 0
+    var parcels = 0
+    var globalPrivileges = 0
+
+    file.parentFile?.mkdirs()
+    val temp = File(file.parentFile, file.name + ".tmp")
+    DataOutputStream(BufferedOutputStream(GZIPOutputStream(FileOutputStream(temp), 1 shl 16))).use { out ->
+        out.writeInt(MAGIC)
+        out.writeInt(VERSION)
+
+        for ((uuid, name) in storage.transmitAllPlayerNames()) {
+            out.writeByte(RECORD_PLAYER_NAME)
+            out.writeUUID(uuid)
+            out.writeUTF(name)
+            playerNames++
+        }
+
+        for ((parcel, data) in storage.transmitAllParcelData()) {
+            if (data == null) continue
+            out.writeByte(RECORD_PARCEL)
+            out.writeParcel(parcel)
+            out.writeData(data)
+            parcels++
+        }
+
+        for ((owner, privileges) in storage.transmitAllGlobalPrivileges()) {
+            if (!privileges.hasAnyDeclaredPrivileges()) continue
+            out.writeByte(RECORD_GLOBAL_PRIVILEGES)
+            out.writeProfile(owner)
+            out.writePrivileges(privileges)
+            globalPrivileges++
+        }
+
+        out.writeByte(RECORD_END)
+        out.writeInt(playerNames)
+        out.writeInt(parcels)
+        out.writeInt(globalPrivileges)
+    }
+
+    if (!temp.renameTo(file)) {
+        file.delete()
+        if (!temp.renameTo(file)) throw IOException("Failed to move the export to ${file.canonicalPath}")
+    }
+    return TransferCounts(playerNames, parcels, globalPrivileges)
+}
+
+/**
+ * Writes the records of an export in [file] to [storage]. Existing data of the same parcels and owners is replaced,
+ * including the global privileges of an owner that are not in the export.
+ * Parcels that are in memory must not be written to storage afterwards, see [scheduleImport].
+ *
+ * Records are read one at a time and written in batches of [BATCH_SIZE], waiting for each batch to complete before
+ * the next is read, such that the memory used does not depend on the size of the file.
+ * Throws an [IOException] if the number of records read does not match the counts at the end of the file.
+ */
+suspend fun importStorage(storage: Storage, file: File): TransferCounts {
+    var playerNames = 0
+    var parcels = 0
+    var globalPrivileges = 0
+
+    val parcelBatch = ArrayList<Pair<ParcelId, ParcelDataHolder>>(BATCH_SIZE)
+    val jobs = ArrayList<Job>(BATCH_SIZE)
+
+    suspend fun flushParcels() {
+        if (parcelBatch.isEmpty()) return
+        storage.setParcelDataBatch(ArrayList(parcelBatch)).join()
+        parcelBatch.clear()
+    }
+
+    suspend fun flushJobs() {
+        jobs.joinAll()
+        jobs.clear()
+    }
+
+    var expected: TransferCounts? = null
+    DataInputStream(BufferedInputStream(GZIPInputStream(FileInputStream(file), 1 shl 16))).use { input ->
+        if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+            throw IOException("${file.name} is not an export of this version")
+        }
+
+        while (expected == null) {
+            when (input.readByte().toInt()) {
+                RECORD_PLAYER_NAME -> {
+                    jobs += storage.updatePlayerName(input.readUUID(), input.readUTF())
+                    playerNames++
+                }
+                RECORD_PARCEL -> {
+                    parcelBatch += input.readParcel() to input.readData()
+                    parcels++
+                    if (parcelBatch.size >= BATCH_SIZE) flushParcels()
+                }
+                RECORD_GLOBAL_PRIVILEGES -> {
+                    val owner = input.readProfile() ?: throw IOException("Global privileges without an owner")
+                    val privileges = PrivilegesHolder().also { input.readPrivileges(it) }
+
+                    // the privileges of the owner are replaced, so those that are not in the export are removed
+                    val existing = storage.readGlobalPrivileges(owner).await()
+                    existing?.privilegeMap?.keys?.forEach { player ->
+                        if (player !in privileges.privilegeMap) jobs += storage.setGlobalPrivilege(owner, player, Privilege.DEFAULT)
+                    }
+                    if (privileges.privilegeOfStar != (existing?.privilegeOfStar ?: Privilege.DEFAULT)) {
+                        jobs += storage.setGlobalPrivilege(owner, PlayerProfile.Star, privileges.privilegeOfStar)
+                    }
+                    for ((player, privilege) in privileges.privilegeMap) {
+                        jobs += storage.setGlobalPrivilege(owner, player, privilege)
+                    }
+                    globalPrivileges++
+                }
+                RECORD_END -> expected = TransferCounts(input.readInt(), input.readInt(), input.readInt())
+                else -> throw IOException("Unknown record type")
+            }
+
+            if (jobs.size >= BATCH_SIZE) flushJobs()
+        }
+    }
+
+    flushParcels()
+    flushJobs()
+
+    val actual = TransferCounts(playerNames, parcels, globalPrivileges)
+    if (actual != expected) throw IOException("Imported $actual, but the export holds $expected")
+    return actual
+}
+
+/**
+ * Schedules [file] to be imported by [runScheduledImport] on the next startup.
+ * Importing while parcels are in memory would let their writes overwrite the imported rows,
+ * so the import runs before any parcel data is loaded.
+ */
+fun scheduleImport(dataFolder: File, file: File) {
+    File(dataFolder, SCHEDULED_IMPORT_FILE_NAME).writeText(file.canonicalPath)
+}
+
+fun isImportScheduled(dataFolder: File) = File(dataFolder, SCHEDULED_IMPORT_FILE_NAME).isFile
+
+/**
+ * Imports the file given to [scheduleImport] into [storage], and returns null if there is none.
+ * The import is attempted once, such that a file that cannot be imported does not fail every startup.
+ */
+suspend fun runScheduledImport(dataFolder: File, storage: Storage): TransferCounts? {
+    val scheduled = File(dataFolder, SCHEDULED_IMPORT_FILE_NAME)
+    if (!scheduled.isFile) return null
+    val file = File(scheduled.readText().trim())
+    if (!scheduled.delete()) throw IOException("Failed to delete ${scheduled.canonicalPath}")
+    return importStorage(storage, file)
+}
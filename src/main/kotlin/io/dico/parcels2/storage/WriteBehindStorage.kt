@@ -0,0 +1,255 @@
+package io.dico.parcels2.storage
+
+import io.dico.parcels2.*
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.channels.ArrayChannel
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.channels.consumeEach
+import java.io.DataOutputStream
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.coroutines.CoroutineContext
+
+private const val BATCH_SIZE = 256
+
+/**
+ * Buffers changes to parcel data for [windowMillis] before writing them, coalescing changes to the same parcel.
+ * Only the latest value of each field of a parcel is written. Buffered changes are written in batches,
+ * one transaction per batch, and are written on shutdown. Reading the data of a parcel writes the changes to that parcel first,
+ * and queries that read the data of many parcels write all changes first.
+ *
+ * The jobs returned by the buffered setters complete when the change is written, or fail if it could not be written.
+ */
+class WriteBehindStorage(val delegate: BackedStorage, val windowMillis: Long) : Storage by delegate, CoroutineScope {
+    override val coroutineContext: CoroutineContext get() = delegate.coroutineContext
+    private val lock = Any()
+    private var pending = LinkedHashMap<String, PendingParcel>()
+    private var pendingCompletion = CompletableDeferred<Unit>()
+    private var isFlushScheduled = false
+    // the batch that is being written for each parcel, keyed like pending
+    private val inFlight = HashMap<String, Job>()
+
+    // metrics, read by the debug commands
+    @Volatile var queuedWrites = 0L; private set
+    @Volatile var coalescedWrites = 0L; private set
+    @Volatile var flushedParcels = 0L; private set
+    @Volatile var flushCount = 0L; private set
+    @Volatile var lastFlushMillis = 0L; private set
+    val pendingParcelCount: Int get() = synchronized(lock) { pending.size }
+
+    private class PendingParcel(val key: String, val id: ParcelId) {
+        var hasData = false
+        var data: ParcelDataHolder? = null
+        var hasOwner = false
+        var owner: PlayerProfile? = null
+        var isOwnerSignOutdated: Boolean? = null
+        val privileges = LinkedHashMap<PlayerProfile, Privilege>()
+        var interactableConfig: InteractableConfiguration? = null
+
+        fun writeTo(b: Backing) {
+            if (hasData) b.setParcelData(id, data)
+            if (hasOwner) b.setParcelOwner(id, owner)
+            isOwnerSignOutdated?.let { b.setParcelOwnerSignOutdated(id, it) }
+            for ((player, privilege) in privileges) b.setLocalPrivilege(id, player, privilege)
+            interactableConfig?.let { b.setParcelOptionsInteractConfig(id, it) }
+        }
+
+        fun spillTo(out: DataOutputStream) = with(out) {
+            if (hasData) spillParcelData(id, data)
+            if (hasOwner) spillParcelOwner(id, owner)
+            isOwnerSignOutdated?.let { spillParcelOwnerSignOutdated(id, it) }
+            for ((player, privilege) in privileges) spillLocalPrivilege(id, player, privilege)
+            interactableConfig?.let { spillParcelInteractConfig(id, it) }
+        }
+    }
+
+    private fun keyOf(parcel: ParcelId) = "${parcel.worldId.name}:${parcel.x}:${parcel.z}"
+
+    private inline fun enqueue(parcel: ParcelId, update: PendingParcel.() -> Boolean): Job = synchronized(lock) {
+        queuedWrites++
+        val key = keyOf(parcel)
+        val entry = pending.getOrPut(key) { PendingParcel(key, parcel) }
+        if (entry.update()) coalescedWrites++
+
+        if (!isFlushScheduled) {
+            isFlushScheduled = true
+            launch {
+                delay(windowMillis)
+                flush()
+            }
+        }
+        pendingCompletion
+    }
+
+    override fun setParcelData(parcel: ParcelId, data: ParcelDataHolder?) = enqueue(parcel) {
+        // the complete data replaces any field that was changed before
+        val replaced = hasData || hasOwner || isOwnerSignOutdated != null || privileges.isNotEmpty() || interactableConfig != null
+        hasData = true
+        this.data = data
+        hasOwner = false
+        owner = null
+        isOwnerSignOutdated = null
+        privileges.clear()
+        interactableConfig = null
+        replaced
+    }
+
+    override fun setParcelOwner(parcel: ParcelId, owner: PlayerProfile?) = enqueue(parcel) {
+        val replaced = hasOwner
+        hasOwner = true
+        this.owner = owner
+        // setting the owner resets the sign outdated flag in storage
+        isOwnerSignOutdated = null
+        replaced
+    }
+
+    override fun setParcelOwnerSignOutdated(parcel: ParcelId, outdated: Boolean) = enqueue(parcel) {
+        val replaced = isOwnerSignOutdated != null
+        isOwnerSignOutdated = outdated
+        replaced
+    }
+
+    override fun setLocalPrivilege(parcel: ParcelId, player: PlayerProfile, privilege: Privilege) = enqueue(parcel) {
+        privileges.put(player, privilege) != null
+    }
+
+    override fun setParcelOptionsInteractConfig(parcel: ParcelId, config: InteractableConfiguration) = enqueue(parcel) {
+        val replaced = interactableConfig != null
+        interactableConfig = config
+        replaced
+    }
+
+    /**
+     * Writes all buffered changes. The returned job completes when they are written,
+     * and fails if any of them could not be written.
+     */
+    fun flush(): Job {
+        val (parcels, completion, writing) = synchronized(lock) {
+            val parcels = pending.values.toList()
+            val completion = pendingCompletion
+            pending = LinkedHashMap()
+            pendingCompletion = CompletableDeferred()
+            isFlushScheduled = false
+            // changes that were flushed for a single parcel share the completion of the next flush
+            Triple(parcels, completion, inFlight.values.toSet())
+        }
+
+        if (parcels.isEmpty() && writing.isEmpty()) {
+            completion.complete(Unit)
+            return completion
+        }
+
+        // batches are grouped by stripe, such that changes to a parcel are written in order across flushes
+        val startTime = System.currentTimeMillis()
+        val batches = parcels.groupBy { it.id.stripe }.flatMap { (stripe, stripeParcels) ->
+            stripeParcels.chunked(BATCH_SIZE).map { batch -> launchBatch(stripe, batch) }
+        } + writing
+
+        val failure = AtomicReference<Throwable>()
+        for (batch in batches) {
+            batch.invokeOnCompletion { cause -> if (cause != null) failure.compareAndSet(null, cause) }
+        }
+
+        launch {
+            try {
+                batches.joinAll()
+            } finally {
+                flushCount++
+                flushedParcels += parcels.size
+                lastFlushMillis = System.currentTimeMillis() - startTime
+                val cause = failure.get()
+                if (cause == null) completion.complete(Unit)
+                else completion.completeExceptionally(cause)
+            }
+        }
+        return completion
+    }
+
+    /**
+     * Writes the buffered changes to [parcel]. The returned job completes when all changes to it that were buffered are written.
+     */
+    private fun flush(parcel: ParcelId): Job {
+        val key = keyOf(parcel)
+        val (entry, writing) = synchronized(lock) { pending.remove(key) to inFlight[key] }
+        if (entry == null) return writing ?: CompletableDeferred(Unit)
+        // a batch that is being written to the same stripe completes first
+        return launchBatch(parcel.stripe, listOf(entry))
+    }
+
+    private fun launchBatch(stripe: Int, batch: List<PendingParcel>): Job {
+        val job = delegate.launchWrite("writeBehindFlush", stripe, { batch.forEach { it.spillTo(this) } }) { batch.forEach { it.writeTo(this) } }
+        synchronized(lock) { batch.forEach { inFlight[it.key] = job } }
+        job.invokeOnCompletion { synchronized(lock) { batch.forEach { inFlight.remove(it.key, job) } } }
+        return job
+    }
+
+    private inline fun <T> afterFlush(flush: Job, crossinline read: () -> Deferred<T>): Deferred<T> {
+        return async {
+            flush.join()
+            read().await()
+        }
+    }
+
+    private inline fun <T> afterFlush(crossinline read: () -> Deferred<T>): Deferred<T> = afterFlush(flush(), read)
+
+    private inline fun <T> afterFlushTransmit(crossinline transmit: () -> ReceiveChannel<T>): ReceiveChannel<T> {
+        val flush = flush()
+        val channel = ArrayChannel<T>(BATCH_SIZE)
+        launch {
+            flush.join()
+            try {
+                transmit().consumeEach { channel.send(it) }
+                channel.close()
+            } catch (ex: Throwable) {
+                channel.close(ex)
+            }
+        }
+        return channel
+    }
+
+    override fun setParcelDataBatch(data: List<Pair<ParcelId, ParcelDataHolder>>): Job {
+        // buffered changes to these parcels are written first
+        val flush = flush()
+        return launch {
+            flush.join()
+            delegate.setParcelDataBatch(data).join()
+        }
+    }
+
+    override fun readParcelData(parcel: ParcelId) = afterFlush(flush(parcel)) { delegate.readParcelData(parcel) }
+
+    override fun transmitParcelData(parcels: Sequence<ParcelId>) = afterFlushTransmit { delegate.transmitParcelData(parcels) }
+
+    override fun transmitAllParcelData() = afterFlushTransmit { delegate.transmitAllParcelData() }
+
+    override fun transmitWorldParcelData(world: ParcelWorldId) = afterFlushTransmit { delegate.transmitWorldParcelData(world) }
+
+    override fun getOwnedParcels(user: PlayerProfile) = afterFlush { delegate.getOwnedParcels(user) }
+
+    override fun getClaimedParcelKeys(world: ParcelWorldId) = afterFlush { delegate.getClaimedParcelKeys(world) }
+
+    override fun getNumParcels(user: PlayerProfile) = afterFlush { delegate.getNumParcels(user) }
+
+    override fun getChannelToUpdateParcelData(): SendChannel<Pair<ParcelId, ParcelDataHolder>> {
+        // the writes sent to the channel are buffered, such that they are ordered with other changes to the same parcels
+        val channel = ArrayChannel<Pair<ParcelId, ParcelDataHolder>>(BATCH_SIZE)
+        launch {
+            for ((parcel, data) in channel) setParcelData(parcel, data)
+        }
+        return channel
+    }
+
+    override fun shutdown(): Job {
+        // the buffered changes are launched as writes of the delegate, which waits for them or spills them
+        flush()
+        return delegate.shutdown()
+    }
+
+}
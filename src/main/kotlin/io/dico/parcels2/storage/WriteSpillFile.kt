@@ -0,0 +1,228 @@
+package io.dico.parcels2.storage
+
+import io.dico.parcels2.*
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.joinAll
+import org.joda.time.DateTime
+import java.io.*
+import java.util.UUID
+import java.util.zip.CRC32
+
+private const val MAX_RECORD_SIZE = 1 shl 24
+private const val REPLAY_BATCH_SIZE = 512
+
+private const val WORLD_CREATION_TIME = 1
+private const val PLAYER_NAME = 2
+private const val PARCEL_DATA = 3
+private const val PARCEL_CLEARED = 4
+private const val PARCEL_OWNER = 5
+private const val PARCEL_OWNER_SIGN_OUTDATED = 6
+private const val LOCAL_PRIVILEGE = 7
+private const val PARCEL_INTERACT_CONFIG = 8
+private const val GLOBAL_PRIVILEGE = 9
+
+/*
+ * Encodings of the writes of storage, used to spill the writes that are pending on shutdown.
+ * The data of a parcel is encoded when it is spilled rather than when it is written, such that its latest state is kept.
+ */
+
+internal fun DataOutputStream.spillWorldCreationTime(world: ParcelWorldId, time: DateTime) {
+    writeByte(WORLD_CREATION_TIME)
+    writeWorld(world)
+    writeLong(time.millis)
+}
+
+internal fun DataOutputStream.spillPlayerName(uuid: UUID, name: String) {
+    writeByte(PLAYER_NAME)
+    writeUUID(uuid)
+    writeUTF(name)
+}
+
+internal fun DataOutputStream.spillParcelData(parcel: ParcelId, data: ParcelDataHolder?) {
+    if (data == null) {
+        writeByte(PARCEL_CLEARED)
+        writeParcel(parcel)
+        return
+    }
+    writeByte(PARCEL_DATA)
+    writeParcel(parcel)
+    writeData(data)
+}
+
+internal fun DataOutputStream.spillParcelOwner(parcel: ParcelId, owner: PlayerProfile?) {
+    writeByte(PARCEL_OWNER)
+    writeParcel(parcel)
+    writeProfile(owner)
+}
+
+internal fun DataOutputStream.spillParcelOwnerSignOutdated(parcel: ParcelId, outdated: Boolean) {
+    writeByte(PARCEL_OWNER_SIGN_OUTDATED)
+    writeParcel(parcel)
+    writeBoolean(outdated)
+}
+
+internal fun DataOutputStream.spillLocalPrivilege(parcel: ParcelId, player: PlayerProfile, privilege: Privilege) {
+    writeByte(LOCAL_PRIVILEGE)
+    writeParcel(parcel)
+    writeProfile(player)
+    writeByte(privilege.number)
+}
+
+internal fun DataOutputStream.spillParcelInteractConfig(parcel: ParcelId, config: InteractableConfiguration) {
+    writeByte(PARCEL_INTERACT_CONFIG)
+    writeParcel(parcel)
+    writeBitmask(config)
+}
+
+internal fun DataOutputStream.spillGlobalPrivilege(owner: PlayerProfile, player: PlayerProfile, privilege: Privilege) {
+    writeByte(GLOBAL_PRIVILEGE)
+    writeProfile(owner)
+    writeProfile(player)
+    writeByte(privilege.number)
+}
+
+/**
+ * An append-only file of the writes that did not complete before storage was shut down.
+ * Each record holds the writes of one job, and is preceded by its checksum, such that a record that was not written
+ * completely is ignored. The writes are replayed when storage is initialized, after which the file is deleted.
+ * Writes can be replayed more than once without changing the result, as each of them sets a value.
+ */
+class WriteSpillFile(val file: File) {
+
+    /**
+     * Appends a record for each of the [writes] and syncs the file.
+     */
+    fun append(writes: List<DataOutputStream.() -> Unit>) {
+        file.parentFile?.mkdirs()
+        FileOutputStream(file, true).use { fileOut ->
+            val out = DataOutputStream(BufferedOutputStream(fileOut))
+            val crc = CRC32()
+            for (write in writes) {
+                val bytes = ByteArrayOutputStream()
+                DataOutputStream(bytes).apply(write).flush()
+                val record = bytes.toByteArray()
+                if (record.isEmpty()) continue
+
+                crc.reset()
+                crc.update(record)
+                out.writeInt(record.size)
+                out.writeInt(crc.value.toInt())
+                out.write(record)
+            }
+            out.flush()
+            fileOut.fd.sync()
+        }
+    }
+
+    /**
+     * Writes the spilled writes to [storage] and deletes the file. Returns the number of writes that succeeded.
+     * Replay stops at the first record that is incomplete, corrupt or of an unknown type. The file is then moved aside
+     * instead of deleted, such that the writes after that record can be recovered by hand. The same goes when any of the
+     * replayed writes fails.
+     */
+    suspend fun replay(storage: Storage): Int {
+        if (!file.exists()) return 0
+        val jobs = ArrayList<Job>()
+        var count = 0
+        var failed = 0
+        var invalidRecord: String? = null
+
+        DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+            val crc = CRC32()
+            while (true) {
+                val length = try {
+                    input.readInt()
+                } catch (ex: EOFException) {
+                    break
+                }
+                if (length !in 1..MAX_RECORD_SIZE) {
+                    invalidRecord = "a record of invalid length $length"
+                    break
+                }
+
+                val bytes = ByteArray(length)
+                try {
+                    val checksum = input.readInt()
+                    input.readFully(bytes)
+                    crc.reset()
+                    crc.update(bytes)
+                    if (crc.value.toInt() != checksum) {
+                        invalidRecord = "a record with an invalid checksum"
+                        break
+                    }
+                } catch (ex: EOFException) {
+                    invalidRecord = "an incomplete record"
+                    break
+                }
+
+                val record = DataInputStream(ByteArrayInputStream(bytes))
+                try {
+                    while (record.available() > 0) {
+                        jobs += record.replayWrite(storage) ?: continue
+                        count++
+                    }
+                } catch (ex: IOException) {
+                    invalidRecord = "a record that cannot be read (${ex.message})"
+                    break
+                }
+
+                if (jobs.size >= REPLAY_BATCH_SIZE) {
+                    failed += joinAndCountFailed(jobs)
+                }
+            }
+        }
+
+        failed += joinAndCountFailed(jobs)
+        logger.info("Replayed ${count - failed} writes that were spilled on shutdown from ${file.canonicalPath}")
+
+        if (invalidRecord != null || failed > 0) {
+            val aside = File(file.parentFile, "${file.name}.invalid-${System.currentTimeMillis()}")
+            if (invalidRecord != null) {
+                logger.error("Stopped replaying ${file.canonicalPath} at $invalidRecord, the writes after it were not replayed")
+            }
+            if (failed > 0) {
+                logger.error("$failed of the writes replayed from ${file.canonicalPath} failed")
+            }
+            logger.error("The file is moved to ${aside.name}")
+            if (!file.renameTo(aside)) throw IOException("Failed to move ${file.canonicalPath} to ${aside.name}")
+            return count - failed
+        }
+
+        if (!file.delete()) throw IOException("Failed to delete ${file.canonicalPath}")
+        return count
+    }
+
+    // joinAll does not rethrow the failures of the jobs, so they are counted instead
+    private suspend fun joinAndCountFailed(jobs: MutableList<Job>): Int {
+        jobs.joinAll()
+        val failed = jobs.count { it.isCancelled }
+        jobs.clear()
+        return failed
+    }
+
+    private fun DataInputStream.replayWrite(storage: Storage): Job? = when (val type = readByte().toInt()) {
+        WORLD_CREATION_TIME -> storage.setWorldCreationTime(readWorld(), DateTime(readLong()))
+        PLAYER_NAME -> storage.updatePlayerName(readUUID(), readUTF())
+        PARCEL_DATA -> storage.setParcelData(readParcel(), readData())
+        PARCEL_CLEARED -> storage.setParcelData(readParcel(), null)
+        PARCEL_OWNER -> storage.setParcelOwner(readParcel(), readProfile())
+        PARCEL_OWNER_SIGN_OUTDATED -> storage.setParcelOwnerSignOutdated(readParcel(), readBoolean())
+        LOCAL_PRIVILEGE -> {
+            val parcel = readParcel()
+            val player = readProfile()!!
+            Privilege.getByNumber(readByte().toInt())?.let { storage.setLocalPrivilege(parcel, player, it) }
+        }
+        PARCEL_INTERACT_CONFIG -> {
+            val parcel = readParcel()
+            val config = BitmaskInteractableConfiguration().also { readBitmask(it) }
+            storage.setParcelOptionsInteractConfig(parcel, config)
+        }
+        GLOBAL_PRIVILEGE -> {
+            val owner = readProfile()!!
+            val player = readProfile()!!
+            Privilege.getByNumber(readByte().toInt())?.let { storage.setGlobalPrivilege(owner, player, it) }
+        }
+        else -> throw IOException("unknown record type $type")
+    }
+
+}
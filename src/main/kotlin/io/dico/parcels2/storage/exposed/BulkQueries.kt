@@ -0,0 +1,178 @@
+package io.dico.parcels2.storage.exposed
+
+import io.dico.parcels2.*
+import io.dico.parcels2.storage.DataPair
+import io.dico.parcels2.storage.toIntArray
+import io.dico.parcels2.storage.toUUID
+import io.dico.parcels2.util.math.clampMax
+import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.channels.sendBlocking
+import org.jetbrains.exposed.sql.Database
+import org.jetbrains.exposed.sql.Transaction
+import org.jetbrains.exposed.sql.transactions.TransactionManager
+import org.jetbrains.exposed.sql.transactions.transaction
+import java.util.UUID
+import org.joda.time.DateTime
+import java.sql.ResultSet
+
+private const val PAGE_SIZE = 1024
+
+/*
+ * Producers read a page in a transaction of its own, and send it to the channel after the transaction completes.
+ * They block while the channel is full, which they must not do while holding a connection of the pool.
+ */
+
+/**
+ * Sends the data of all parcels to the [channel], or that of the parcels in the world with the given [worldId] if it is not null.
+ *
+ * Parcels are read in pages ordered by their id, such that memory use is bounded by the page size. Each page takes two queries:
+ * one that joins the parcels with their world, options and owner, and one that joins their privileges with the profiles they apply to.
+ * The rows of the second query are merged into the parcels of the page.
+ */
+internal fun sendParcelDataInPages(database: Database, channel: SendChannel<DataPair>, worldId: Int?, world: ParcelWorldId?) {
+    val worlds = HashMap<Int, ParcelWorldId>()
+    var lastId = 0
+
+    while (true) {
+        val page = LinkedHashMap<Int, Pair<ParcelId, ParcelDataHolder>>()
+
+        transaction(database) {
+            queryParcelsPage(lastId, worldId) { rs ->
+                val id = rs.getInt(1)
+                val rowWorldId = rs.getInt(2)
+                val parcelWorld = world ?: worlds.getOrPut(rowWorldId) { ParcelWorldId(rs.getString(3), rs.getBytes(4)?.toUUID()) }
+
+                page[id] = ParcelId(parcelWorld, rs.getInt(5), rs.getInt(6)) to readParcelDataColumns(rs, 7)
+                lastId = id
+            }
+
+            if (page.isEmpty()) return@transaction
+
+            queryPrivilegesPage(page.keys.first(), lastId) { rs ->
+                val data = page[rs.getInt(1)]?.second ?: return@queryPrivilegesPage
+                val profile = PlayerProfile.safe(rs.getBytes(3)?.toUUID(), rs.getString(4)) as? PlayerProfile.Real ?: return@queryPrivilegesPage
+                val privilege = Privilege.getByNumber(rs.getInt(2)) ?: return@queryPrivilegesPage
+                data.setRawStoredPrivilege(profile, privilege)
+            }
+        }
+
+        if (page.isEmpty()) break
+
+        for (pair in page.values) {
+            channel.sendBlocking(pair)
+        }
+
+        if (page.size < PAGE_SIZE) break
+    }
+}
+
+/**
+ * Sends the uuid and name of all profiles that have both to the [channel], reading them in pages ordered by id.
+ */
+internal fun sendPlayerNamesInPages(database: Database, channel: SendChannel<Pair<UUID, String>>) {
+    var lastId = 0
+
+    while (true) {
+        val page = ArrayList<Pair<UUID, String>>(PAGE_SIZE)
+
+        transaction(database) {
+            val p = ProfilesT
+            val sql = "SELECT ${identity(p.id)}, ${identity(p.uuid)}, ${identity(p.name)} FROM ${identity(p)} " +
+                "WHERE ${identity(p.id)} > ? AND ${identity(p.uuid)} IS NOT NULL AND ${identity(p.name)} IS NOT NULL " +
+                "ORDER BY ${identity(p.id)} LIMIT $PAGE_SIZE"
+
+            queryRows(sql, lastId, fetchSize = PAGE_SIZE) { rs ->
+                lastId = rs.getInt(1)
+                page += rs.getBytes(2).toUUID() to rs.getString(3)
+            }
+        }
+
+        for (pair in page) {
+            channel.sendBlocking(pair)
+        }
+
+        if (page.size < PAGE_SIZE) break
+    }
+}
+
+/**
+ * Sends the data of the given [parcels] to the [channel], reading a page of them per transaction.
+ */
+internal fun sendParcelDataOf(database: Database, channel: SendChannel<DataPair>, parcels: Sequence<ParcelId>) {
+    for (chunk in parcels.chunked(PAGE_SIZE)) {
+        val page = transaction(database) {
+            chunk.map { parcel -> parcel to ParcelsT.getId(parcel)?.let { readParcelDataById(it) } }
+        }
+
+        for (pair in page) {
+            channel.sendBlocking(pair)
+        }
+    }
+}
+
+private val parcelDataSql = CachedSql {
+    val p = ParcelsT
+    "SELECT ${fullIdentity(p.sign_oudated)}, ${fullIdentity(p.claim_time)}, " +
+        "${fullIdentity(ParcelOptionsT.interact_bitmask)}, ${fullIdentity(ProfilesT.uuid)}, ${fullIdentity(ProfilesT.name)} " +
+        "FROM ${identity(p)} " +
+        "LEFT JOIN ${identity(ParcelOptionsT)} ON ${fullIdentity(ParcelOptionsT.parcel_id)} = ${fullIdentity(p.id)} " +
+        "LEFT JOIN ${identity(ProfilesT)} ON ${fullIdentity(ProfilesT.id)} = ${fullIdentity(p.owner_id)} " +
+        "WHERE ${fullIdentity(p.id)} = ?"
+}
+
+/**
+ * Reads the data of the parcel with the given [id] with one query for the parcel, its options and its owner,
+ * and one for its privileges.
+ */
+internal fun readParcelDataById(id: Int): ParcelDataHolder? {
+    val data = TransactionManager.current().prepared(parcelDataSql) { statement ->
+        statement.setInt(1, id)
+        statement.executeQuery().use { rs -> if (rs.next()) readParcelDataColumns(rs, 1) else null }
+    } ?: return null
+
+    PrivilegesLocalT.readPrivileges(id)?.let { data.copyPrivilegesFrom(it) }
+    return data
+}
+
+/**
+ * Reads the sign outdated flag, claim time, interact bitmask, owner uuid and owner name, in that order, starting at [firstColumn].
+ */
+private fun readParcelDataColumns(rs: ResultSet, firstColumn: Int) = ParcelDataHolder().apply {
+    isOwnerSignOutdated = rs.getBoolean(firstColumn)
+    lastClaimTime = rs.getTimestamp(firstColumn + 1)?.let { DateTime(it.time) }
+
+    rs.getBytes(firstColumn + 2)?.let { bitmask ->
+        val source = bitmask.toIntArray()
+        val target = (interactableConfig as? BitmaskInteractableConfiguration)?.bitmaskArray ?: return@let
+        System.arraycopy(source, 0, target, 0, source.size.clampMax(target.size))
+    }
+
+    owner = PlayerProfile.safe(rs.getBytes(firstColumn + 3)?.toUUID(), rs.getString(firstColumn + 4))
+}
+
+private inline fun Transaction.queryParcelsPage(afterId: Int, worldId: Int?, onRow: (ResultSet) -> Unit) {
+    val p = ParcelsT
+    val sql = "SELECT ${fullIdentity(p.id)}, ${fullIdentity(p.world_id)}, ${fullIdentity(WorldsT.name)}, ${fullIdentity(WorldsT.uid)}, " +
+        "${fullIdentity(p.px)}, ${fullIdentity(p.pz)}, ${fullIdentity(p.sign_oudated)}, ${fullIdentity(p.claim_time)}, " +
+        "${fullIdentity(ParcelOptionsT.interact_bitmask)}, ${fullIdentity(ProfilesT.uuid)}, ${fullIdentity(ProfilesT.name)} " +
+        "FROM ${identity(p)} " +
+        "INNER JOIN ${identity(WorldsT)} ON ${fullIdentity(WorldsT.id)} = ${fullIdentity(p.world_id)} " +
+        "LEFT JOIN ${identity(ParcelOptionsT)} ON ${fullIdentity(ParcelOptionsT.parcel_id)} = ${fullIdentity(p.id)} " +
+        "LEFT JOIN ${identity(ProfilesT)} ON ${fullIdentity(ProfilesT.id)} = ${fullIdentity(p.owner_id)} " +
+        "WHERE ${fullIdentity(p.id)} > ?" + (if (worldId == null) "" else " AND ${fullIdentity(p.world_id)} = ?") + " " +
+        "ORDER BY ${fullIdentity(p.id)} LIMIT $PAGE_SIZE"
+
+    if (worldId == null) queryRows(sql, afterId, fetchSize = PAGE_SIZE, onRow = onRow)
+    else queryRows(sql, afterId, worldId, fetchSize = PAGE_SIZE, onRow = onRow)
+}
+
+private inline fun Transaction.queryPrivilegesPage(firstId: Int, lastId: Int, onRow: (ResultSet) -> Unit) {
+    val l = PrivilegesLocalT
+    val sql = "SELECT ${fullIdentity(l.attach_id)}, ${fullIdentity(l.privilege)}, ${fullIdentity(ProfilesT.uuid)}, ${fullIdentity(ProfilesT.name)} " +
+        "FROM ${identity(l)} " +
+        "INNER JOIN ${identity(ProfilesT)} ON ${fullIdentity(ProfilesT.id)} = ${fullIdentity(l.profile_id)} " +
+        "WHERE ${fullIdentity(l.attach_id)} BETWEEN ? AND ? " +
+        "ORDER BY ${fullIdentity(l.attach_id)}"
+
+    queryRows(sql, firstId, lastId, fetchSize = PAGE_SIZE, onRow = onRow)
+}
@@ -7,37 +7,79 @@ import io.dico.parcels2.*
 import io.dico.parcels2.PlayerProfile.Star.name
 import io.dico.parcels2.storage.*
 import io.dico.parcels2.util.math.clampMax
+import io.dico.parcels2.util.math.parcelKey
 import io.dico.parcels2.util.ext.synchronized
 import kotlinx.coroutines.*
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.channels.ArrayChannel
-import kotlinx.coroutines.channels.LinkedListChannel
 import kotlinx.coroutines.channels.ReceiveChannel
 import kotlinx.coroutines.channels.SendChannel
 import org.jetbrains.exposed.sql.*
-import org.jetbrains.exposed.sql.SchemaUtils.create
 import org.jetbrains.exposed.sql.transactions.transaction
 import org.jetbrains.exposed.sql.vendors.DatabaseDialect
 import org.joda.time.DateTime
 import java.util.UUID
 import javax.sql.DataSource
+import kotlin.coroutines.CoroutineContext
 
 class ExposedDatabaseException(message: String? = null) : Exception(message)
 
-class ExposedBacking(private val dataSourceFactory: () -> DataSource, val poolSize: Int) : Backing, CoroutineScope {
+/**
+ * @param groupCommitSize the maximum number of jobs that share a transaction, 1 to run each job in its own transaction
+ * @param groupCommitMillis the time to wait for more jobs before the pending jobs are run
+ */
+class ExposedBacking(private val dataSourceFactory: () -> DataSource,
+                     val poolSize: Int,
+                     val channelCapacity: Int,
+                     val groupCommitSize: Int = 1,
+                     val groupCommitMillis: Long = 0) : Backing, CoroutineScope {
     override val name get() = "Exposed"
-    override val coroutineContext = Job() + newFixedThreadPoolContext(poolSize, "Parcels StorageThread")
+    private val dispatcher = newFixedThreadPoolContext(poolSize, "Parcels StorageThread")
+    override val coroutineContext = Job() + dispatcher
+    // producers of channels block while the channel is full, so they run outside of the commit queues, on threads of their own
+    private val producerDispatcher = newFixedThreadPoolContext(poolSize.clampMax(2), "Parcels StorageProducer")
+    private val commitQueue = CommitQueue(dispatcher)
+    // each stripe runs its jobs one at a time, in order, on the threads of the dispatcher
+    // such that there are never more threads than there are connections in the pool
+    private val stripeCommitQueues = Array(poolSize) { CommitQueue(dispatcher) }
     private var dataSource: DataSource? = null
     private var database: Database? = null
     private var isShutdown: Boolean = false
     override val isConnected get() = database != null
 
-    override fun launchJob(job: Backing.() -> Unit): Job = launch { transaction { job() } }
+    /**
+     * Statistics of the connection pool, or null if the data source is not pooled by Hikari.
+     */
+    val poolStatistics: Map<String, Int>?
+        get() = (dataSource as? HikariDataSource)?.hikariPoolMXBean?.let { pool ->
+            linkedMapOf(
+                "active" to pool.activeConnections,
+                "idle" to pool.idleConnections,
+                "total" to pool.totalConnections,
+                "awaiting" to pool.threadsAwaitingConnection
+            )
+        }
+
+    override fun launchJob(job: Backing.() -> Unit): Job =
+        if (groupCommitSize > 1) commitQueue.submit(job)
+        else launch { transaction { job() } }
+
+    override fun launchJob(stripe: Int, job: Backing.() -> Unit): Job =
+        stripeCommitQueues[Math.floorMod(stripe, stripeCommitQueues.size)].submit(job)
+
     override fun <T> launchFuture(future: Backing.() -> T): Deferred<T> = async { transaction { future() } }
 
+    // producers block while the channel is full, such that rows are not read faster than they are consumed.
+    // they are not run in a transaction, but read a page of rows per transaction, see sendParcelDataInPages
     override fun <T> openChannel(future: Backing.(SendChannel<T>) -> Unit): ReceiveChannel<T> {
-        val channel = LinkedListChannel<T>()
-        launchJob { future(channel) }
+        val channel = ArrayChannel<T>(channelCapacity)
+        launch(producerDispatcher) {
+            try {
+                future(channel)
+            } catch (ex: Exception) {
+                channel.close(ex)
+            }
+        }
         return channel
     }
 
@@ -47,8 +89,16 @@ class ExposedBacking(private val dataSourceFactory: () -> DataSource, val poolSi
         repeat(poolSize.clampMax(3)) {
             launch {
                 try {
+                    val batch = ArrayList<T>()
                     while (true) {
-                        action(channel.receive())
+                        batch.add(channel.receive())
+                        while (batch.size < groupCommitSize) batch.add(channel.poll() ?: break)
+
+                        val failures = runGrouped(batch.map<T, Backing.() -> Unit> { element -> { action(element) } })
+                        failures.forEachIndexed { index, ex ->
+                            if (ex != null) logger.error("Failed to write ${batch[index]}", ex)
+                        }
+                        batch.clear()
                     }
                 } catch (ex: Exception) {
                     // channel closed
@@ -59,7 +109,133 @@ class ExposedBacking(private val dataSourceFactory: () -> DataSource, val poolSi
         return channel
     }
 
-    private fun <T> transaction(statement: Transaction.() -> T) = transaction(database!!, statement)
+    private fun <T> transaction(statement: Transaction.() -> T): T {
+        val database = database!!
+        try {
+            return transaction(database, statement)
+        } catch (ex: Throwable) {
+            // ids of rows inserted by the transaction might have been cached
+            clearIdCaches(database)
+            throw ex
+        }
+    }
+
+    /**
+     * Runs the [jobs] in one transaction, each within a savepoint such that a failing job is rolled back without affecting the others.
+     * If the transaction fails as a whole, the jobs are run again one at a time, each in its own transaction.
+     * Returns the exception thrown by each job, or null for the jobs that succeeded.
+     */
+    private fun runGrouped(jobs: List<Backing.() -> Unit>): Array<Exception?> {
+        val failures = arrayOfNulls<Exception>(jobs.size)
+        if (jobs.size > 1) {
+            try {
+                transaction {
+                    jobs.forEachIndexed { index, job ->
+                        val savepoint = connection.setSavepoint()
+                        try {
+                            job()
+                            connection.releaseSavepoint(savepoint)
+                        } catch (ex: Exception) {
+                            connection.rollback(savepoint)
+                            failures[index] = ex
+                        }
+                    }
+                }
+
+                // ids of rows inserted by the jobs that were rolled back might have been cached
+                if (failures.any { it != null }) clearIdCaches(database!!)
+                return failures
+            } catch (ex: Exception) {
+                logger.warn("Failed to commit ${jobs.size} jobs at once, running them one at a time", ex)
+                failures.fill(null)
+            }
+        }
+
+        jobs.forEachIndexed { index, job ->
+            try {
+                transaction { job() }
+            } catch (ex: Exception) {
+                failures[index] = ex
+            }
+        }
+        return failures
+    }
+
+    private class PendingJob(val job: Backing.() -> Unit) {
+        val completion = CompletableDeferred<Unit>()
+    }
+
+    /**
+     * Collects the jobs launched in one [context] and runs them in groups that share a transaction, and so a commit.
+     * Up to [groupCommitSize] jobs are run at once, after waiting up to [groupCommitMillis] for more jobs to be launched.
+     * Groups run one at a time, such that jobs run in the order they were launched.
+     */
+    private inner class CommitQueue(val context: CoroutineContext) {
+        private val pending = ArrayList<PendingJob>()
+        private var isDrainScheduled = false
+        private var isFull: CompletableDeferred<Unit>? = null
+
+        fun submit(job: Backing.() -> Unit): Job {
+            val pendingJob = PendingJob(job)
+            synchronized(this) {
+                pending.add(pendingJob)
+                if (pending.size >= groupCommitSize) isFull?.complete(Unit)
+                if (!isDrainScheduled) {
+                    isDrainScheduled = true
+                    launch(context) { drain() }
+                }
+            }
+            return pendingJob.completion
+        }
+
+        private suspend fun drain() {
+            while (true) {
+                if (groupCommitMillis > 0) {
+                    val isFull = synchronized(this) {
+                        CompletableDeferred<Unit>().also {
+                            if (pending.size >= groupCommitSize) it.complete(Unit)
+                            this.isFull = it
+                        }
+                    }
+                    withTimeoutOrNull(groupCommitMillis) { isFull.await() }
+                }
+
+                val batch = synchronized(this) {
+                    isFull = null
+                    if (pending.isEmpty()) {
+                        isDrainScheduled = false
+                        return
+                    }
+                    val taken = pending.subList(0, pending.size.clampMax(groupCommitSize))
+                    ArrayList(taken).also { taken.clear() }
+                }
+
+                try {
+                    val failures = runGrouped(batch.map { it.job })
+                    batch.forEachIndexed { index, pendingJob ->
+                        val ex = failures[index]
+                        if (ex == null) pendingJob.completion.complete(Unit)
+                        else pendingJob.completion.completeExceptionally(ex)
+                    }
+                } catch (ex: Throwable) {
+                    // the drain keeps going, because isDrainScheduled stays set until the queue is empty,
+                    // so no other drain would run the jobs that are queued after this batch
+                    logger.error("Failed to run a batch of ${batch.size} jobs", ex)
+                    batch.forEach { it.completion.completeExceptionally(ex) }
+                }
+            }
+        }
+
+        /**
+         * Fails the jobs that did not run yet.
+         */
+        fun cancel(cause: Throwable) {
+            synchronized(this) {
+                pending.forEach { it.completion.completeExceptionally(cause) }
+                pending.clear()
+            }
+        }
+    }
 
     companion object {
         init {
@@ -76,9 +252,7 @@ class ExposedBacking(private val dataSourceFactory: () -> DataSource, val poolSi
             this.dataSource = dataSource
             val database = Database.connect(dataSource)
             this.database = database
-            transaction(database) {
-                create(WorldsT, ProfilesT, ParcelsT, ParcelOptionsT, PrivilegesLocalT, PrivilegesGlobalT)
-            }
+            createOrMigrateSchema(database, dataSource)
         }
     }
 
@@ -86,7 +260,12 @@ class ExposedBacking(private val dataSourceFactory: () -> DataSource, val poolSi
         synchronized {
             if (isShutdown) throw IllegalStateException()
             isShutdown = true
-            coroutineContext.cancel(CancellationException("ExposedBacking shutdown"))
+            val cause = CancellationException("ExposedBacking shutdown")
+            commitQueue.cancel(cause)
+            stripeCommitQueues.forEach { it.cancel(cause) }
+            coroutineContext.cancel(cause)
+            dispatcher.close()
+            producerDispatcher.close()
             dataSource?.let {
                 (it as? HikariDataSource)?.close()
             }
@@ -126,38 +305,40 @@ class ExposedBacking(private val dataSourceFactory: () -> DataSource, val poolSi
     }
 
     override fun getPlayerUuidForName(name: String): UUID? {
-        return ProfilesT.slice(ProfilesT.uuid).select { ProfilesT.name.upperCase() eq name.toUpperCase() }
+        return ProfilesT.slice(ProfilesT.uuid).select { ProfilesT.uuid.isNotNull() and (ProfilesT.name_lower eq name.toLowerCase()) }
             .firstOrNull()?.let { it[ProfilesT.uuid]?.toUUID() }
     }
 
     override fun updatePlayerName(uuid: UUID, name: String) {
-        val binaryUuid = uuid.toByteArray()
-        ProfilesT.upsert(ProfilesT.uuid) {
-            it[ProfilesT.uuid] = binaryUuid
-            it[ProfilesT.name] = name
-        }
+        ProfilesT.updateName(uuid, name)
+    }
+
+    override fun transmitAllPlayerNames(channel: SendChannel<Pair<UUID, String>>) {
+        sendPlayerNamesInPages(database!!, channel)
+        channel.close()
     }
 
     override fun transmitParcelData(channel: SendChannel<DataPair>, parcels: Sequence<ParcelId>) {
-        for (parcel in parcels) {
-            val data = readParcelData(parcel)
-            channel.offer(parcel to data)
-        }
+        sendParcelDataOf(database!!, channel, parcels)
         channel.close()
     }
 
     override fun transmitAllParcelData(channel: SendChannel<DataPair>) {
-        ParcelsT.selectAll().forEach { row ->
-            val parcel = ParcelsT.getItem(row) ?: return@forEach
-            val data = rowToParcelData(row)
-            channel.offer(parcel to data)
+        sendParcelDataInPages(database!!, channel, null, null)
+        channel.close()
+    }
+
+    override fun transmitWorldParcelData(channel: SendChannel<DataPair>, world: ParcelWorldId) {
+        val worldId = transaction { WorldsT.getId(world) }
+        if (worldId != null) {
+            sendParcelDataInPages(database!!, channel, worldId, world)
         }
         channel.close()
     }
 
     override fun readParcelData(parcel: ParcelId): ParcelDataHolder? {
-        val row = ParcelsT.getRow(parcel) ?: return null
-        return rowToParcelData(row)
+        val id = ParcelsT.getId(parcel) ?: return null
+        return readParcelDataById(id)
     }
 
     override fun getOwnedParcels(user: PlayerProfile): List<ParcelId> {
@@ -168,11 +349,20 @@ class ExposedBacking(private val dataSourceFactory: () -> DataSource, val poolSi
             .toList()
     }
 
+    override fun getClaimedParcelKeys(world: ParcelWorldId): LongArray {
+        val worldId = WorldsT.getId(world) ?: return LongArray(0)
+        return ParcelsT.slice(ParcelsT.px, ParcelsT.pz)
+            .select { (ParcelsT.world_id eq worldId) and ParcelsT.owner_id.isNotNull() }
+            .map { parcelKey(it[ParcelsT.px], it[ParcelsT.pz]) }
+            .toLongArray()
+    }
+
     override fun setParcelData(parcel: ParcelId, data: ParcelDataHolder?) {
         if (data == null) {
             transaction {
                 ParcelsT.getId(parcel)?.let { id ->
                     ParcelsT.deleteIgnoreWhere { ParcelsT.id eq id }
+                    ParcelsT.forgetId(parcel)
 
                     // Below should cascade automatically
                     /*
@@ -185,12 +375,17 @@ class ExposedBacking(private val dataSourceFactory: () -> DataSource, val poolSi
             return
         }
 
-        transaction {
-            val id = ParcelsT.getOrInitId(parcel)
-            PrivilegesLocalT.deleteIgnoreWhere { PrivilegesLocalT.attach_id eq id }
+        val id = transaction {
+            ParcelsT.getOrInitId(parcel).also { id ->
+                PrivilegesLocalT.deleteIgnoreWhere { PrivilegesLocalT.attach_id eq id }
+            }
         }
 
-        setParcelOwner(parcel, data.owner)
+        // the claim time of the data is kept, such that it survives exports and swaps
+        val owner = data.owner
+        val owner_id = owner?.let { ProfilesT.getOrInitId(it.toOwnerProfile()) }
+        ParcelsT.setOwner(id, owner_id, owner?.let { data.lastClaimTime ?: DateTime.now() })
+        if (data.isOwnerSignOutdated) setParcelOwnerSignOutdated(parcel, true)
 
         for ((profile, privilege) in data.privilegeMap) {
             PrivilegesLocalT.setPrivilege(parcel, profile, privilege)
@@ -212,11 +407,7 @@ class ExposedBacking(private val dataSourceFactory: () -> DataSource, val poolSi
         val owner_id = owner?.let { ProfilesT.getOrInitId(it.toOwnerProfile()) }
         val time = owner?.let { DateTime.now() }
 
-        ParcelsT.update({ ParcelsT.id eq id }) {
-            it[ParcelsT.owner_id] = owner_id
-            it[claim_time] = time
-            it[sign_oudated] = false
-        }
+        ParcelsT.setOwner(id, owner_id, time)
     }
 
     override fun setParcelOwnerSignOutdated(parcel: ParcelId, outdated: Boolean) {
@@ -250,7 +441,7 @@ class ExposedBacking(private val dataSourceFactory: () -> DataSource, val poolSi
     }
 
     override fun transmitAllGlobalPrivileges(channel: SendChannel<PrivilegePair<PlayerProfile>>) {
-        PrivilegesGlobalT.sendAllPrivilegesH(channel)
+        PrivilegesGlobalT.sendAllPrivilegesH(database!!, channel)
         channel.close()
     }
 
@@ -262,23 +453,5 @@ class ExposedBacking(private val dataSourceFactory: () -> DataSource, val poolSi
         PrivilegesGlobalT.setPrivilege(owner, player.toRealProfile(), privilege)
     }
 
-    private fun rowToParcelData(row: ResultRow) = ParcelDataHolder().apply {
-        owner = row[ParcelsT.owner_id]?.let { ProfilesT.getItem(it) }
-        lastClaimTime = row[ParcelsT.claim_time]
-        isOwnerSignOutdated = row[ParcelsT.sign_oudated]
-
-        val id = row[ParcelsT.id]
-        ParcelOptionsT.select { ParcelOptionsT.parcel_id eq id }.firstOrNull()?.let { optrow ->
-            val source = optrow[ParcelOptionsT.interact_bitmask].toIntArray()
-            val target = (interactableConfig as? BitmaskInteractableConfiguration ?: return@let).bitmaskArray
-            System.arraycopy(source, 0, target, 0, source.size.clampMax(target.size))
-        }
-
-        val privileges = PrivilegesLocalT.readPrivileges(id)
-        if (privileges != null) {
-            copyPrivilegesFrom(privileges)
-        }
-    }
-
 }
 
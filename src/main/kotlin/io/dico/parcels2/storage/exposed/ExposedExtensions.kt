@@ -4,6 +4,9 @@ import org.jetbrains.exposed.sql.*
 import org.jetbrains.exposed.sql.Function
 import org.jetbrains.exposed.sql.statements.InsertStatement
 import org.jetbrains.exposed.sql.transactions.TransactionManager
+import java.sql.PreparedStatement
+import java.sql.ResultSet
+import java.util.WeakHashMap
 
 class UpsertStatement<Key : Any>(table: Table, conflictColumn: Column<*>? = null, conflictIndex: Index? = null) : InsertStatement<Key>(table, false) {
     val indexName: String
@@ -51,6 +54,39 @@ inline fun <T : Table> T.upsert(conflictColumn: Column<*>? = null, conflictIndex
         execute(TransactionManager.current())
     }
 
+/**
+ * Runs the query [sql] with the given [params] bound to it, passing each row to [onRow].
+ * Rows are fetched from the database [fetchSize] at a time.
+ */
+internal inline fun Transaction.queryRows(sql: String, vararg params: Any, fetchSize: Int = 1024, onRow: (ResultSet) -> Unit) {
+    connection.prepareStatement(sql).use { statement ->
+        statement.fetchSize = fetchSize
+        params.forEachIndexed { index, param -> statement.setObject(index + 1, param) }
+        statement.executeQuery().use { rs ->
+            while (rs.next()) onRow(rs)
+        }
+    }
+}
+
+/**
+ * The SQL of a statement that runs often, built once per database instead of on every call like Exposed's DSL does.
+ * The drivers keep the statements prepared on each pooled connection in their statement cache,
+ * such that the database parses the SQL once per connection.
+ */
+internal class CachedSql(private val build: Transaction.() -> String) {
+    private val sqlByDatabase = WeakHashMap<Database, String>()
+
+    operator fun get(transaction: Transaction): String = synchronized(sqlByDatabase) {
+        sqlByDatabase.getOrPut(transaction.db) { transaction.build() }
+    }
+}
+
+/**
+ * Runs [block] with a statement prepared from [sql] on the connection of this transaction.
+ */
+internal inline fun <T> Transaction.prepared(sql: CachedSql, block: (PreparedStatement) -> T): T =
+    connection.prepareStatement(sql[this]).use(block)
+
 fun Table.indexR(customIndexName: String? = null, isUnique: Boolean = false, vararg columns: Column<*>): Index {
     val index = Index(columns.toList(), isUnique, customIndexName)
     indices.add(index)
@@ -9,12 +9,47 @@ import io.dico.parcels2.storage.toByteArray
 import io.dico.parcels2.storage.toUUID
 import org.jetbrains.exposed.sql.*
 import org.jetbrains.exposed.sql.statements.UpdateBuilder
+import org.jetbrains.exposed.sql.transactions.TransactionManager
 import org.joda.time.DateTime
+import java.sql.Statement
+import java.sql.Timestamp
+import java.sql.Types
 import java.util.UUID
+import java.util.WeakHashMap
+
+/**
+ * A bounded LRU cache of the ids of rows, kept separately for each database.
+ * Ids are added when they are looked up or inserted, and should be removed when their row is deleted.
+ */
+class IdCache(private val capacity: Int) {
+    private val maps = WeakHashMap<Database, LinkedHashMap<Any, Int>>()
+
+    private fun mapOf(db: Database) = maps.getOrPut(db) {
+        object : LinkedHashMap<Any, Int>(64, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Any, Int>?) = size > capacity
+        }
+    }
+
+    operator fun get(key: Any): Int? = TransactionManager.current().db.let { db -> synchronized(this) { mapOf(db)[key] } }
+    operator fun set(key: Any, id: Int) = TransactionManager.current().db.let { db -> synchronized(this) { mapOf(db)[key] = id } }
+    fun remove(key: Any) = TransactionManager.current().db.let { db -> synchronized(this) { mapOf(db).remove(key) } }
+    fun clear(db: Database) = synchronized(this) { maps.remove(db) }
+}
 
-abstract class IdTransactionsTable<TableT : IdTransactionsTable<TableT, QueryObj>, QueryObj>(tableName: String, columnName: String)
+/**
+ * Forgets all cached ids of the given database.
+ * Must be called when a transaction that might have inserted rows is rolled back.
+ */
+internal fun clearIdCaches(db: Database) {
+    WorldsT.idCache.clear(db)
+    ParcelsT.idCache.clear(db)
+    ProfilesT.idCache.clear(db)
+}
+
+abstract class IdTransactionsTable<TableT : IdTransactionsTable<TableT, QueryObj>, QueryObj>(tableName: String, columnName: String, cacheCapacity: Int)
     : Table(tableName) {
     val id = integer(columnName).autoIncrement().primaryKey()
+    val idCache = IdCache(cacheCapacity)
 
     @Suppress("UNCHECKED_CAST")
     inline val table: TableT
@@ -24,11 +59,55 @@ abstract class IdTransactionsTable<TableT : IdTransactionsTable<TableT, QueryObj
         return select { where(table) }.firstOrNull()?.let { it[id] }
     }
 
+    internal inline fun getCachedId(key: Any, getId: () -> Int?): Int? {
+        return idCache[key] ?: getId()?.also { idCache[key] = it }
+    }
+
     internal inline fun getOrInitId(getId: () -> Int?, noinline body: TableT.(UpdateBuilder<*>) -> Unit, objName: () -> String): Int {
         return getId() ?: table.insertIgnore(body)[id] ?: getId()
         ?: throw ExposedDatabaseException("This should not happen - failed to insert ${objName()} and get its number")
     }
 
+    /**
+     * Inserts a row with the given [values] unless it conflicts with an existing row on [conflictColumns],
+     * and returns the id of the inserted or existing row using a single statement.
+     * Returns null if the dialect is not supported, in which case [getOrInitId] should be used instead.
+     */
+    internal fun insertOrGetId(conflictColumns: List<Column<*>>, values: List<Pair<Column<*>, Any?>>): Int? {
+        val transaction = TransactionManager.current()
+        val vendor = transaction.db.vendor
+        val tableName = transaction.identity(this)
+        val idName = transaction.identity(id)
+        val insert = "INSERT INTO $tableName (${values.joinToString { transaction.identity(it.first) }}) VALUES (${values.joinToString { "?" }})"
+
+        val sql = when (vendor) {
+            // the conflicting row is only returned if it is updated
+            "postgresql" -> conflictColumns.first().let { transaction.identity(it) }.let { column ->
+                "$insert ON CONFLICT (${conflictColumns.joinToString { transaction.identity(it) }}) DO UPDATE SET $column = EXCLUDED.$column RETURNING $idName"
+            }
+            "mysql", "mariadb" -> "$insert ON DUPLICATE KEY UPDATE $idName = LAST_INSERT_ID($idName)"
+            else -> return null
+        }
+
+        val isReturning = vendor == "postgresql"
+        transaction.connection.prepareStatement(sql, if (isReturning) Statement.NO_GENERATED_KEYS else Statement.RETURN_GENERATED_KEYS).use { statement ->
+            values.forEachIndexed { index, (_, value) -> statement.setObject(index + 1, value) }
+            val result = if (isReturning) statement.executeQuery() else statement.executeUpdate().let { statement.generatedKeys }
+            return result.use { if (it.next()) it.getInt(1) else null }
+        }
+    }
+
+    /**
+     * Uses [insertOrGetId] if possible, falling back to [getOrInitId]. The id is cached under [key].
+     */
+    internal inline fun getOrInitCachedId(key: Any, conflictColumns: List<Column<*>>, values: List<Pair<Column<*>, Any?>>,
+                                          getId: () -> Int?, noinline body: TableT.(UpdateBuilder<*>) -> Unit, objName: () -> String): Int {
+        idCache[key]?.let { return it }
+        val id = insertOrGetId(conflictColumns, values) ?: getOrInitId(getId, body, objName)
+        idCache[key] = id
+        return id
+    }
+
     abstract fun getId(obj: QueryObj): Int?
     abstract fun getOrInitId(obj: QueryObj): Int
     fun getItem(id: Int): QueryObj? = select { this@IdTransactionsTable.id eq id }.firstOrNull()?.let { getItem(it) }
@@ -37,20 +116,23 @@ abstract class IdTransactionsTable<TableT : IdTransactionsTable<TableT, QueryObj
     fun getId(obj: QueryObj, init: Boolean): Int? = if (init) getOrInitId(obj) else getId(obj)
 }
 
-object WorldsT : IdTransactionsTable<WorldsT, ParcelWorldId>("parcels_worlds", "world_id") {
+object WorldsT : IdTransactionsTable<WorldsT, ParcelWorldId>("parcels_worlds", "world_id", 64) {
     val name = varchar("name", 50)
     val uid = binary("uid", 16).nullable()
     val creation_time = datetime("creation_time").nullable()
     val index_name = uniqueIndexR("index_name", name)
     val index_uid = uniqueIndexR("index_uid", uid)
 
+    // worlds can conflict on either unique index, so they are not inserted with insertOrGetId
     internal inline fun getId(worldName: String, binaryUid: ByteArray?): Int? = getId { (name eq worldName).let { if (binaryUid == null) it else it or (uid eq binaryUid) } }
-    internal inline fun getId(worldName: String, uid: UUID?): Int? = getId(worldName, uid?.toByteArray())
+    internal inline fun getId(worldName: String, uid: UUID?): Int? = getCachedId("$worldName/$uid") { getId(worldName, uid?.toByteArray()) }
     internal inline fun getOrInitId(worldName: String, worldUid: UUID?): Int = worldUid?.toByteArray().let { binaryUid ->
+        val key = "$worldName/$worldUid"
+        idCache[key]?.let { return it }
         return getOrInitId(
             { getId(worldName, binaryUid) },
             { it[name] = worldName; it[uid] = binaryUid },
-            { "world named $worldName" })
+            { "world named $worldName" }).also { idCache[key] = it }
     }
 
     override fun getId(world: ParcelWorldId): Int? = getId(world.name, world.uid)
@@ -73,31 +155,64 @@ object WorldsT : IdTransactionsTable<WorldsT, ParcelWorldId>("parcels_worlds", "
     }
 }
 
-object ParcelsT : IdTransactionsTable<ParcelsT, ParcelId>("parcels", "parcel_id") {
+object ParcelsT : IdTransactionsTable<ParcelsT, ParcelId>("parcels", "parcel_id", 16384) {
     val world_id = integer("world_id").references(WorldsT.id)
     val px = integer("px")
     val pz = integer("pz")
     val owner_id = integer("owner_id").references(ProfilesT.id).nullable()
     val sign_oudated = bool("sign_outdated").default(false)
     val claim_time = datetime("claim_time").nullable()
+    val index_owner_claim_time = indexR("index_parcels_owner_claim_time", false, owner_id, claim_time)
     val index_location = uniqueIndexR("index_location", world_id, px, pz)
 
-    private inline fun getId(worldId: Int, parcelX: Int, parcelZ: Int): Int? = getId { world_id.eq(worldId) and px.eq(parcelX) and pz.eq(parcelZ) }
+    private data class CacheKey(val worldId: Int, val x: Int, val z: Int)
+
+    private inline fun getId(worldId: Int, parcelX: Int, parcelZ: Int): Int? =
+        getCachedId(CacheKey(worldId, parcelX, parcelZ)) { getId { world_id.eq(worldId) and px.eq(parcelX) and pz.eq(parcelZ) } }
     private inline fun getId(worldName: String, worldUid: UUID?, parcelX: Int, parcelZ: Int): Int? = WorldsT.getId(worldName, worldUid)?.let { getId(it, parcelX, parcelZ) }
     private inline fun getOrInitId(worldName: String, worldUid: UUID?, parcelX: Int, parcelZ: Int): Int {
         val worldId = WorldsT.getOrInitId(worldName, worldUid)
-        return getOrInitId(
+        return getOrInitCachedId(
+            CacheKey(worldId, parcelX, parcelZ),
+            listOf(world_id, px, pz),
+            listOf(world_id to worldId, px to parcelX, pz to parcelZ),
             { getId(worldId, parcelX, parcelZ) },
             { it[world_id] = worldId; it[px] = parcelX; it[pz] = parcelZ },
             { "parcel at $worldName($parcelX, $parcelZ)" })
     }
 
+    /**
+     * Forgets the cached id of the given parcel. Must be called when its row is deleted.
+     */
+    fun forgetId(parcel: ParcelId) {
+        val worldId = WorldsT.getId(parcel.worldId) ?: return
+        idCache.remove(CacheKey(worldId, parcel.x, parcel.z))
+    }
+
     override fun getId(parcel: ParcelId): Int? = getId(parcel.worldId.name, parcel.worldId.uid, parcel.x, parcel.z)
     override fun getOrInitId(parcel: ParcelId): Int = getOrInitId(parcel.worldId.name, parcel.worldId.uid, parcel.x, parcel.z)
 
     private inline fun getRow(id: Int): ResultRow? = select { ParcelsT.id eq id }.firstOrNull()
     fun getRow(parcel: ParcelId): ResultRow? = getId(parcel)?.let { getRow(it) }
 
+    private val setOwnerSql = CachedSql {
+        "UPDATE ${identity(ParcelsT)} SET ${identity(ParcelsT.owner_id)} = ?, ${identity(ParcelsT.claim_time)} = ?, " +
+            "${identity(ParcelsT.sign_oudated)} = ? WHERE ${identity(ParcelsT.id)} = ?"
+    }
+
+    /**
+     * Sets the owner of the parcel with the given [id], and resets its sign outdated flag.
+     */
+    fun setOwner(id: Int, ownerId: Int?, claimTime: DateTime?) {
+        TransactionManager.current().prepared(setOwnerSql) { statement ->
+            if (ownerId == null) statement.setNull(1, Types.INTEGER) else statement.setInt(1, ownerId)
+            statement.setTimestamp(2, claimTime?.let { Timestamp(it.millis) })
+            statement.setBoolean(3, false)
+            statement.setInt(4, id)
+            statement.executeUpdate()
+        }
+    }
+
     override fun getItem(row: ResultRow): ParcelId? {
         val worldId = row[world_id]
         val world = WorldsT.getItem(worldId) ?: return null
@@ -105,30 +220,37 @@ object ParcelsT : IdTransactionsTable<ParcelsT, ParcelId>("parcels", "parcel_id"
     }
 }
 
-object ProfilesT : IdTransactionsTable<ProfilesT, PlayerProfile>("parcels_profiles", "owner_id") {
+object ProfilesT : IdTransactionsTable<ProfilesT, PlayerProfile>("parcels_profiles", "owner_id", 8192) {
     val uuid = binary("uuid", 16).nullable()
     val name = varchar("name", 32).nullable()
+    // the lower case name, such that lookups by name can use an index
+    val name_lower = varchar("name_lower", 32).nullable()
 
     // MySQL dialect MUST permit multiple null values for this to work. Server SQL does not allow this. That dialect is shit anyway.
     val uuid_constraint = uniqueIndexR("uuid_constraint", uuid)
     val index_pair = uniqueIndexR("index_pair", uuid, name)
+    val index_name_lower = indexR("index_profiles_name_lower", false, name_lower)
 
 
     private inline fun getId(binaryUuid: ByteArray) = getId { uuid eq binaryUuid }
-    private inline fun getId(uuid: UUID) = getId(uuid.toByteArray())
-    private inline fun getId(nameIn: String) = getId { uuid.isNull() and (name.lowerCase() eq nameIn.toLowerCase()) }
-    private inline fun getRealId(nameIn: String) = getId { uuid.isNotNull() and (name.lowerCase() eq nameIn.toLowerCase()) }
+    private inline fun getId(uuid: UUID) = getCachedId(uuid) { getId(uuid.toByteArray()) }
+    private inline fun getId(nameIn: String) = getCachedId("fake:" + nameIn.toLowerCase()) { getId { uuid.isNull() and (name_lower eq nameIn.toLowerCase()) } }
+    private inline fun getRealId(nameIn: String) = getId { uuid.isNotNull() and (name_lower eq nameIn.toLowerCase()) }
 
     private inline fun getOrInitId(uuid: UUID, name: String?) = uuid.toByteArray().let { binaryUuid ->
-        getOrInitId(
+        getOrInitCachedId(
+            uuid,
+            listOf(this.uuid),
+            listOf(this.uuid to binaryUuid, this.name to name, name_lower to name?.toLowerCase()),
             { getId(binaryUuid) },
-            { it[this@ProfilesT.uuid] = binaryUuid; it[this@ProfilesT.name] = name },
+            { it[this@ProfilesT.uuid] = binaryUuid; it[this@ProfilesT.name] = name; it[name_lower] = name?.toLowerCase() },
             { "profile(uuid = $uuid, name = $name)" })
     }
 
+    // fake profiles have no uuid, and null values never conflict, so they are not inserted with insertOrGetId
     private inline fun getOrInitId(name: String) = getOrInitId(
         { getId(name) },
-        { it[ProfilesT.name] = name },
+        { it[ProfilesT.name] = name; it[name_lower] = name.toLowerCase() },
         { "owner(name = $name)" })
 
 
@@ -153,6 +275,24 @@ object ProfilesT : IdTransactionsTable<ProfilesT, PlayerProfile>("parcels_profil
         return getItem(id) as? PlayerProfile.Real
     }
 
+    private val updateNameSql = CachedSql {
+        val uuid = identity(ProfilesT.uuid)
+        val name = identity(ProfilesT.name)
+        val nameLower = identity(ProfilesT.name_lower)
+        val insert = "INSERT INTO ${identity(ProfilesT)} ($uuid, $name, $nameLower) VALUES (?, ?, ?)"
+        if (db.vendor == "postgresql") "$insert ON CONFLICT ($uuid) DO UPDATE SET $name = EXCLUDED.$name, $nameLower = EXCLUDED.$nameLower"
+        else "$insert ON DUPLICATE KEY UPDATE $name = VALUES($name), $nameLower = VALUES($nameLower)"
+    }
+
+    fun updateName(playerUuid: UUID, playerName: String) {
+        TransactionManager.current().prepared(updateNameSql) { statement ->
+            statement.setBytes(1, playerUuid.toByteArray())
+            statement.setString(2, playerName)
+            statement.setString(3, playerName.toLowerCase())
+            statement.executeUpdate()
+        }
+    }
+
     /*
     fun updatePlayerProfile(profile: PlayerProfile.Real) {
         update({ uuid eq profile.uuid.toByteArray() }) {
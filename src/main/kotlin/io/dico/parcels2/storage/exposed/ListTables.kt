@@ -4,12 +4,39 @@ package io.dico.parcels2.storage.exposed
 
 import io.dico.parcels2.*
 import io.dico.parcels2.Privilege.DEFAULT
-import io.dico.parcels2.util.ext.alsoIfTrue
+import io.dico.parcels2.storage.toUUID
 import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.channels.sendBlocking
 import org.jetbrains.exposed.sql.*
+import org.jetbrains.exposed.sql.transactions.TransactionManager
+import org.jetbrains.exposed.sql.transactions.transaction
+import java.sql.ResultSet
 
-object PrivilegesLocalT : PrivilegesTable<ParcelId>("parcels_privilege_local", ParcelsT)
-object PrivilegesGlobalT : PrivilegesTable<PlayerProfile>("parcels_privilege_global", ProfilesT)
+object PrivilegesLocalT : PrivilegesTable<ParcelId>("parcels_privilege_local", ParcelsT) {
+    override fun Transaction.attachJoin() =
+        "INNER JOIN ${identity(ParcelsT)} ON ${fullIdentity(ParcelsT.id)} = ${fullIdentity(attach_id)} " +
+            "INNER JOIN ${identity(WorldsT)} ON ${fullIdentity(WorldsT.id)} = ${fullIdentity(ParcelsT.world_id)}"
+
+    override fun Transaction.attachColumns() =
+        "${fullIdentity(WorldsT.name)}, ${fullIdentity(WorldsT.uid)}, ${fullIdentity(ParcelsT.px)}, ${fullIdentity(ParcelsT.pz)}"
+
+    override fun readAttach(rs: ResultSet, firstColumn: Int): ParcelId? {
+        val world = ParcelWorldId(rs.getString(firstColumn), rs.getBytes(firstColumn + 1)?.toUUID())
+        return ParcelId(world, rs.getInt(firstColumn + 2), rs.getInt(firstColumn + 3))
+    }
+}
+
+object PrivilegesGlobalT : PrivilegesTable<PlayerProfile>("parcels_privilege_global", ProfilesT) {
+    // the profiles table is joined twice, the owners are aliased
+    override fun Transaction.attachJoin() =
+        "INNER JOIN ${identity(ProfilesT)} owners ON owners.${identity(ProfilesT.id)} = ${fullIdentity(attach_id)}"
+
+    override fun Transaction.attachColumns() =
+        "owners.${identity(ProfilesT.uuid)}, owners.${identity(ProfilesT.name)}"
+
+    override fun readAttach(rs: ResultSet, firstColumn: Int): PlayerProfile? =
+        PlayerProfile.safe(rs.getBytes(firstColumn)?.toUUID(), rs.getString(firstColumn + 1))
+}
 
 object ParcelOptionsT : Table("parcels_options") {
     val parcel_id = integer("parcel_id").primaryKey().references(ParcelsT.id, ReferenceOption.CASCADE)
@@ -18,94 +45,145 @@ object ParcelOptionsT : Table("parcels_options") {
 
 typealias PrivilegesSendChannel<AttachT> = SendChannel<Pair<AttachT, PrivilegesHolder>>
 
+private const val PRIVILEGES_PAGE_SIZE = 512
+
 sealed class PrivilegesTable<AttachT>(name: String, val idTable: IdTransactionsTable<*, AttachT>) : Table(name) {
     val attach_id = integer("attach_id").references(idTable.id, ReferenceOption.CASCADE)
     val profile_id = integer("profile_id").references(ProfilesT.id, ReferenceOption.CASCADE)
     val privilege = integer("privilege")
     val index_pair = uniqueIndexR("index_pair", attach_id, profile_id)
 
+    private val deleteSql = CachedSql {
+        "DELETE FROM ${identity(this@PrivilegesTable)} WHERE ${identity(attach_id)} = ? AND ${identity(profile_id)} = ?"
+    }
+
+    private val upsertSql = CachedSql {
+        val insert = "INSERT INTO ${identity(this@PrivilegesTable)} (${identity(attach_id)}, ${identity(profile_id)}, ${identity(privilege)}) VALUES (?, ?, ?)"
+        if (db.vendor == "postgresql") "$insert ON CONFLICT (${identity(attach_id)}, ${identity(profile_id)}) DO UPDATE SET ${identity(privilege)} = EXCLUDED.${identity(privilege)}"
+        else "$insert ON DUPLICATE KEY UPDATE ${identity(privilege)} = VALUES(${identity(privilege)})"
+    }
+
     fun setPrivilege(attachedOn: AttachT, player: PlayerProfile.Real, privilege: Privilege) {
         privilege.requireNonTransient()
 
         if (privilege == DEFAULT) {
             val player_id = ProfilesT.getId(player) ?: return
             idTable.getId(attachedOn)?.let { holder ->
-                deleteWhere { (attach_id eq holder) and (profile_id eq player_id) }
+                TransactionManager.current().prepared(deleteSql) { statement ->
+                    statement.setInt(1, holder)
+                    statement.setInt(2, player_id)
+                    statement.executeUpdate()
+                }
             }
             return
         }
 
         val holder = idTable.getOrInitId(attachedOn)
         val player_id = ProfilesT.getOrInitId(player)
-        upsert(conflictIndex = index_pair) {
-            it[attach_id] = holder
-            it[profile_id] = player_id
-            it[this.privilege] = privilege.number
+        TransactionManager.current().prepared(upsertSql) { statement ->
+            statement.setInt(1, holder)
+            statement.setInt(2, player_id)
+            statement.setInt(3, privilege.number)
+            statement.executeUpdate()
         }
     }
 
     fun readPrivileges(id: Int): PrivilegesHolder? {
-        val list = slice(profile_id, privilege).select { attach_id eq id }
         val result = PrivilegesHolder()
-        for (row in list) {
-            val profile = ProfilesT.getRealItem(row[profile_id]) ?: continue
-            result.setRawStoredPrivilege(profile, Privilege.getByNumber(row[privilege]) ?: continue)
+        val transaction = TransactionManager.current()
+        val sql = with(transaction) {
+            "SELECT ${fullIdentity(privilege)}, ${fullIdentity(ProfilesT.uuid)}, ${fullIdentity(ProfilesT.name)} " +
+                "FROM ${identity(this@PrivilegesTable)} " +
+                "INNER JOIN ${identity(ProfilesT)} ON ${fullIdentity(ProfilesT.id)} = ${fullIdentity(profile_id)} " +
+                "WHERE ${fullIdentity(attach_id)} = ?"
+        }
+
+        transaction.queryRows(sql, id) { rs ->
+            val profile = PlayerProfile.safe(rs.getBytes(2)?.toUUID(), rs.getString(3)) as? PlayerProfile.Real ?: return@queryRows
+            result.setRawStoredPrivilege(profile, Privilege.getByNumber(rs.getInt(1)) ?: return@queryRows)
         }
         return result
     }
 
-    fun sendAllPrivilegesH(channel: PrivilegesSendChannel<AttachT>) {
-        val iterator = selectAll().orderBy(attach_id).iterator()
-
-        if (iterator.hasNext()) {
-            var row = iterator.next()
-            var id: Int = row[attach_id]
-            var attach: AttachT? = null
-            var map: PrivilegesHolder? = null
+    /**
+     * Joins the table of the objects that privileges are attached to, such that [attachColumns] can be selected.
+     */
+    protected abstract fun Transaction.attachJoin(): String
+
+    /**
+     * The columns that [readAttach] reads the object that privileges are attached to from.
+     */
+    protected abstract fun Transaction.attachColumns(): String
+
+    protected abstract fun readAttach(rs: ResultSet, firstColumn: Int): AttachT?
+
+    /**
+     * Sends all privileges to the [channel], grouped by the object they are attached to.
+     * The objects are read in pages, each in its own transaction, and a page is sent after its transaction completes,
+     * such that no connection is held while the channel is full.
+     */
+    fun sendAllPrivilegesH(database: Database, channel: PrivilegesSendChannel<AttachT>) {
+        var lastId = 0
+        while (true) {
+            val page = ArrayList<Pair<AttachT, PrivilegesHolder>>()
+            val pageLastId = transaction(database) { readPrivilegesPage(lastId, page) } ?: break
+            page.forEach { channel.sendBlocking(it) }
+            lastId = pageLastId
+        }
+    }
 
-            fun initAttachAndMap() {
-                attach = idTable.getItem(id)
-                map = attach?.let { PrivilegesHolder() }
+    /**
+     * Reads the privileges of up to [PRIVILEGES_PAGE_SIZE] objects with an attach id greater than [afterId] into [page].
+     * The privileges, the profiles they apply to and the objects they are attached to are read in a single scan ordered by attach id.
+     * Returns the greatest attach id of the page, or null if there are no objects after [afterId].
+     */
+    private fun Transaction.readPrivilegesPage(afterId: Int, page: MutableList<Pair<AttachT, PrivilegesHolder>>): Int? {
+        val idsSql = "SELECT DISTINCT ${identity(attach_id)} FROM ${identity(this@PrivilegesTable)} " +
+            "WHERE ${identity(attach_id)} > ? ORDER BY ${identity(attach_id)} LIMIT $PRIVILEGES_PAGE_SIZE"
+        var idCount = 0
+        var lastId = afterId
+        queryRows(idsSql, afterId) { rs -> idCount++; lastId = rs.getInt(1) }
+        if (idCount == 0) return null
+
+        val sql = "SELECT ${fullIdentity(attach_id)}, ${fullIdentity(privilege)}, ${fullIdentity(ProfilesT.uuid)}, ${fullIdentity(ProfilesT.name)}, ${attachColumns()} " +
+            "FROM ${identity(this@PrivilegesTable)} " +
+            "INNER JOIN ${identity(ProfilesT)} ON ${fullIdentity(ProfilesT.id)} = ${fullIdentity(profile_id)} " +
+            "${attachJoin()} " +
+            "WHERE ${fullIdentity(attach_id)} > ? AND ${fullIdentity(attach_id)} <= ? " +
+            "ORDER BY ${fullIdentity(attach_id)}"
+
+        var id = -1
+        var attach: AttachT? = null
+        var map: PrivilegesHolder? = null
+
+        queryRows(sql, afterId, lastId) { rs ->
+            val rowId = rs.getInt(1)
+            if (rowId != id) {
+                if (attach != null) page.add(attach!! to map!!)
+                id = rowId
+                attach = readAttach(rs, 5)
+                map = PrivilegesHolder()
             }
 
-            fun sendIfPresent() {
-                if (attach != null && map != null) {
-                    channel.offer(attach!! to map!!)
-                }
-                attach = null
-                map = null
+            if (attach == null) {
+                return@queryRows // owner not found for this owner id
             }
 
-            initAttachAndMap()
-
-            do {
-                val rowId = row[attach_id]
-                if (rowId != id) {
-                    sendIfPresent()
-                    id = rowId
-                    initAttachAndMap()
-                }
-
-                if (attach == null) {
-                    continue // owner not found for this owner id
-                }
-
-                val profile = ProfilesT.getRealItem(row[profile_id])
-                if (profile == null) {
-                    logger.error("Privilege from database is null, id ${row[profile_id]}")
-                    continue
-                }
-                val privilege = Privilege.getByNumber(row[privilege])
-                if (privilege == null) {
-                    logger.error("Privilege from database is null, number ${row[this.privilege]}")
-                    continue
-                }
-                map!!.setRawStoredPrivilege(profile, privilege)
-
-            } while (iterator.hasNext().alsoIfTrue { row = iterator.next() })
-
-            sendIfPresent()
+            val profile = PlayerProfile.safe(rs.getBytes(3)?.toUUID(), rs.getString(4)) as? PlayerProfile.Real
+            if (profile == null) {
+                logger.error("Privilege from database is not attached to a real profile, name ${rs.getString(4)}")
+                return@queryRows
+            }
+            val privilege = Privilege.getByNumber(rs.getInt(2))
+            if (privilege == null) {
+                logger.error("Privilege from database is null, number ${rs.getInt(2)}")
+                return@queryRows
+            }
+            map!!.setRawStoredPrivilege(profile, privilege)
         }
+
+        if (attach != null) page.add(attach!! to map!!)
+        return lastId
     }
 
 }
@@ -0,0 +1,135 @@
+package io.dico.parcels2.storage.exposed
+
+import io.dico.parcels2.logger
+import org.jetbrains.exposed.sql.*
+import org.jetbrains.exposed.sql.transactions.transaction
+import org.joda.time.DateTime
+import javax.sql.DataSource
+
+// servers that share a database hold this lock while they create or migrate its schema
+private const val SCHEMA_LOCK_NAME = "parcels_schema"
+private const val SCHEMA_LOCK_KEY = 0x50415243 // PARC
+private const val SCHEMA_LOCK_TIMEOUT_SECONDS = 600
+
+object SchemaVersionT : Table("parcels_schema_version") {
+    val version = integer("version").primaryKey()
+    val applied_at = datetime("applied_at")
+}
+
+/**
+ * A change to the schema of a database that was created before [version].
+ * The [statements] run outside of a transaction, such that indexes can be built without locking the table where the dialect allows it.
+ * They should not fail when they are run again, in case the server stopped before the migration was recorded.
+ * They are built while the schema lock is held, such that they can inspect the schema without another server changing it.
+ */
+private class SchemaMigration(val version: Int, val description: String, val statements: Transaction.() -> List<String>)
+
+private val migrations = listOf(
+    SchemaMigration(1, "index parcels by owner and claim time") {
+        val columns = "${identity(ParcelsT.owner_id)}, ${identity(ParcelsT.claim_time)}"
+        createIndex(ParcelsT, ParcelsT.index_owner_claim_time.indexName, columns)
+    },
+
+    SchemaMigration(2, "store lower case names of profiles and index them") {
+        val table = identity(ProfilesT)
+        val nameLower = identity(ProfilesT.name_lower)
+        val addColumn = "ALTER TABLE $table ADD COLUMN IF NOT EXISTS $nameLower VARCHAR(32)"
+
+        listOf(
+            if (db.vendor == "mariadb") "$addColumn, ALGORITHM=INPLACE, LOCK=NONE" else addColumn,
+            "UPDATE $table SET $nameLower = LOWER(${identity(ProfilesT.name)}) WHERE $nameLower IS NULL"
+        ) + createIndex(ProfilesT, ProfilesT.index_name_lower.indexName, nameLower) + listOfNotNull(
+            // replaced by the index of the lower case names
+            if (db.vendor == "postgresql") "DROP INDEX CONCURRENTLY IF EXISTS index_name_lower" else null
+        )
+    }
+)
+
+private val latestVersion = migrations.last().version
+
+private fun Transaction.createIndex(table: Table, indexName: String, columns: String): List<String> = when (db.vendor) {
+    "postgresql" -> listOfNotNull(
+        // a concurrent build that failed leaves an invalid index behind, which IF NOT EXISTS would skip forever
+        if (isInvalidIndex(indexName)) "DROP INDEX CONCURRENTLY IF EXISTS $indexName" else null,
+        "CREATE INDEX CONCURRENTLY IF NOT EXISTS $indexName ON ${identity(table)} ($columns)"
+    )
+    "mariadb" -> listOf("ALTER TABLE ${identity(table)} ADD INDEX IF NOT EXISTS $indexName ($columns), ALGORITHM=INPLACE, LOCK=NONE")
+    else -> listOf("CREATE INDEX IF NOT EXISTS $indexName ON ${identity(table)} ($columns)")
+}
+
+private fun Transaction.isInvalidIndex(indexName: String): Boolean {
+    var isInvalid = false
+    queryRows("SELECT NOT i.indisvalid FROM pg_index i INNER JOIN pg_class c ON c.oid = i.indexrelid " +
+        "WHERE c.relname = ? AND pg_table_is_visible(c.oid)", indexName) { rs -> isInvalid = rs.getBoolean(1) }
+    return isInvalid
+}
+
+/**
+ * Runs [block] while holding a lock of the database that is shared by the servers using it, where the dialect has one.
+ * The lock is held by a connection of its own, and is released when that connection is closed if the server stops.
+ */
+private fun <T> withSchemaLock(database: Database, dataSource: DataSource, block: () -> T): T {
+    val (lock, unlock) = when (database.vendor) {
+        "postgresql" -> "SELECT 1 FROM pg_advisory_lock($SCHEMA_LOCK_KEY)" to "SELECT pg_advisory_unlock($SCHEMA_LOCK_KEY)"
+        "mariadb", "mysql" -> "SELECT GET_LOCK('$SCHEMA_LOCK_NAME', $SCHEMA_LOCK_TIMEOUT_SECONDS)" to "SELECT RELEASE_LOCK('$SCHEMA_LOCK_NAME')"
+        // the embedded database is opened by one server only
+        else -> return block()
+    }
+
+    dataSource.connection.use { connection ->
+        connection.autoCommit = true
+        connection.createStatement().use { statement ->
+            val isLocked = statement.executeQuery(lock).use { rs -> rs.next() && rs.getInt(1) == 1 }
+            if (!isLocked) throw IllegalStateException("Timed out waiting for another server to migrate the database schema")
+
+            try {
+                return block()
+            } finally {
+                statement.executeQuery(unlock).close()
+            }
+        }
+    }
+}
+
+/**
+ * Creates the tables, and brings the schema of an existing database up to date by running the migrations it is missing.
+ * A database that is created by this call gets the latest schema, and is marked as such.
+ * Servers that start at the same time take turns, the later one finding the schema up to date.
+ */
+internal fun createOrMigrateSchema(database: Database, dataSource: DataSource) = withSchemaLock(database, dataSource) {
+    val version = transaction(database) {
+        val isNew = !ParcelsT.exists()
+        SchemaUtils.create(WorldsT, ProfilesT, ParcelsT, ParcelOptionsT, PrivilegesLocalT, PrivilegesGlobalT, SchemaVersionT)
+
+        val version = SchemaVersionT.selectAll().map { it[SchemaVersionT.version] }.max()
+        when {
+            version != null -> version
+            isNew -> latestVersion.also { insertVersion(it) }
+            else -> 0
+        }
+    }
+
+    for (migration in migrations) {
+        if (migration.version <= version) continue
+        logger.info("Migrating the database schema to version ${migration.version}: ${migration.description}")
+
+        val statements = transaction(database) { migration.statements(this) }
+        dataSource.connection.use { connection ->
+            connection.autoCommit = true
+            connection.createStatement().use { statement ->
+                statements.forEach { statement.execute(it) }
+            }
+        }
+
+        transaction(database) { insertVersion(migration.version) }
+    }
+}
+
+private fun insertVersion(version: Int) {
+    // dialects without a schema lock could have recorded it from another connection
+    if (!SchemaVersionT.select { SchemaVersionT.version eq version }.empty()) return
+    SchemaVersionT.insert {
+        it[SchemaVersionT.version] = version
+        it[applied_at] = DateTime.now()
+    }
+}
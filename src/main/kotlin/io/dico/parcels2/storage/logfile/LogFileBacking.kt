@@ -0,0 +1,547 @@
+package io.dico.parcels2.storage.logfile
+
+import io.dico.parcels2.*
+import io.dico.parcels2.storage.*
+import io.dico.parcels2.util.ext.synchronized
+import io.dico.parcels2.util.math.clampMax
+import io.dico.parcels2.util.math.fromParcelKey
+import io.dico.parcels2.util.math.parcelKey
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.ArrayChannel
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.channels.sendBlocking
+import org.joda.time.DateTime
+import java.io.*
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.UUID
+import java.util.zip.CRC32
+
+private const val MAX_RECORD_SIZE = 1 shl 24
+private const val PAGE_SIZE = 1024
+
+private const val WORLD_CREATION_TIME = 1
+private const val PLAYER_NAME = 2
+private const val PARCEL_DATA = 3
+private const val PARCEL_CLEARED = 4
+private const val PARCEL_OWNER = 5
+private const val PARCEL_OWNER_SIGN_OUTDATED = 6
+private const val LOCAL_PRIVILEGE = 7
+private const val PARCEL_INTERACT_CONFIG = 8
+private const val GLOBAL_PRIVILEGE = 9
+private const val GLOBAL_PRIVILEGES = 10
+
+/**
+ * A backing that keeps all data in memory and writes every change as a record to an append-only log in [directory].
+ *
+ * Records are buffered and written to the log together, followed by a single fsync, every [syncIntervalMillis] (group commit).
+ * Jobs that change data complete once their records are synced. Each record carries its length and checksum, such that
+ * a record that was partially written before a crash is detected and discarded when the log is replayed at startup.
+ *
+ * When the log grows beyond [compactThresholdBytes], the complete state is written to a snapshot and the log is truncated.
+ * Records only ever set values, so replaying a log on top of a snapshot that already contains its changes is harmless.
+ *
+ * All jobs run on a single thread, which owns the state. Channels are filled by a separate producer thread, which copies
+ * a page of the state at a time on that thread, such that it can block while the channel is full.
+ */
+class LogFileBacking(val directory: File,
+                     val syncIntervalMillis: Long,
+                     val compactThresholdBytes: Long,
+                     val channelCapacity: Int) : Backing, CoroutineScope {
+    override val name get() = "LogFile"
+    private val dispatcher = newSingleThreadContext("Parcels LogFileStorage")
+    private val producerDispatcher = newSingleThreadContext("Parcels LogFileStorageProducer")
+    override val coroutineContext = Job() + dispatcher
+    private val logFile = File(directory, "journal.log")
+    private val snapshotFile = File(directory, "snapshot.bin")
+    private var log: FileChannel? = null
+    private var isShutdown = false
+    private var syncLoop: Job? = null
+    override val isConnected get() = log != null
+
+    private val buffer = ByteArrayOutputStream()
+    private var pendingSync = CompletableDeferred<Unit>()
+
+    private class WorldState(val id: ParcelWorldId) {
+        var creationTime: DateTime? = null
+        val parcels = HashMap<Long, ParcelDataHolder>()
+    }
+
+    private val worlds = HashMap<String, WorldState>()
+    private val playerNames = HashMap<UUID, String>()
+    private val uuidsByName = HashMap<String, UUID>()
+    private val globalPrivileges = HashMap<Any, Pair<PlayerProfile, PrivilegesHolder>>()
+
+    override fun launchJob(job: Backing.() -> Unit): Job = launch {
+        job()
+        if (buffer.size() > 0) pendingSync.await()
+    }
+
+    // all jobs run on the same thread, so they are in order regardless of the stripe
+    override fun launchJob(stripe: Int, job: Backing.() -> Unit): Job = launchJob(job)
+
+    override fun <T> launchFuture(future: Backing.() -> T): Deferred<T> = async { future() }
+
+    // producers block while the channel is full, such that the state is not copied faster than it is consumed.
+    // they do not run on the log thread, but copy a page of the state on it at a time, see sendInPages
+    override fun <T> openChannel(future: Backing.(SendChannel<T>) -> Unit): ReceiveChannel<T> {
+        val channel = ArrayChannel<T>(channelCapacity)
+        launch(producerDispatcher) {
+            try {
+                future(channel)
+            } catch (ex: Exception) {
+                channel.close(ex)
+            }
+        }
+        return channel
+    }
+
+    private fun <T> onLogThread(block: () -> T): T = runBlocking(dispatcher) { block() }
+
+    /**
+     * Sends the elements that [read] returns for [keys] to the [channel], reading [PAGE_SIZE] of them at a time on the log thread.
+     * Keys for which [read] returns null, because their value was removed in the meantime, are skipped.
+     */
+    private fun <K, T : Any> sendInPages(channel: SendChannel<T>, keys: Sequence<K>, read: (K) -> T?) {
+        for (page in keys.chunked(PAGE_SIZE)) {
+            val elements = onLogThread { page.mapNotNull(read) }
+            for (element in elements) {
+                channel.sendBlocking(element)
+            }
+        }
+    }
+
+    override fun <T> openChannelForWriting(action: Backing.(T) -> Unit): SendChannel<T> {
+        val channel = ArrayChannel<T>(64)
+        launch {
+            for (item in channel) {
+                action(item)
+            }
+            if (buffer.size() > 0) pendingSync.await()
+        }
+        return channel
+    }
+
+    override fun init() {
+        synchronized {
+            if (isShutdown || isConnected) throw IllegalStateException()
+            directory.mkdirs()
+
+            replay(snapshotFile)
+            val validLength = replay(logFile)
+
+            val log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+            if (log.size() > validLength) {
+                logger.warn("Discarding ${log.size() - validLength} bytes of incomplete records at the end of ${logFile.canonicalPath}")
+                log.truncate(validLength)
+            }
+            log.position(validLength)
+            this.log = log
+
+            syncLoop = launch {
+                while (true) {
+                    delay(syncIntervalMillis)
+                    sync()
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the periodic sync, and syncs the buffered records one last time on the log thread, after the jobs that were
+     * launched before it, such that the state is not accessed from the thread that shuts down.
+     * Must not be called from the log thread.
+     */
+    override fun shutdown() {
+        val syncLoop = synchronized {
+            if (isShutdown) throw IllegalStateException()
+            isShutdown = true
+            syncLoop
+        }
+
+        try {
+            runBlocking {
+                syncLoop?.cancelAndJoin()
+                launch(dispatcher) {
+                    sync()
+                    if (buffer.size() > 0) pendingSync.completeExceptionally(IOException("Failed to write to ${logFile.canonicalPath} before shutdown"))
+                }.join()
+            }
+        } finally {
+            synchronized {
+                coroutineContext.cancel(CancellationException("LogFileBacking shutdown"))
+                log?.close()
+                log = null
+                dispatcher.close()
+                producerDispatcher.close()
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered records to the log and syncs it to the disk, then completes the jobs that wrote them.
+     * If the records can not be written, the log is truncated to its previous length, and they are kept to be written by the next sync.
+     * Records that were written partially would otherwise make replay stop before the records written after them.
+     */
+    private fun sync() {
+        if (buffer.size() == 0) return
+        val log = log ?: return
+        val validLength = log.position()
+
+        try {
+            val bytes = ByteBuffer.wrap(buffer.toByteArray())
+            while (bytes.hasRemaining()) log.write(bytes)
+            log.force(false)
+        } catch (ex: IOException) {
+            logger.error("Failed to write to ${logFile.canonicalPath}", ex)
+            try {
+                log.truncate(validLength)
+                log.position(validLength)
+            } catch (truncateEx: IOException) {
+                logger.error("Failed to discard the records that were partially written to ${logFile.canonicalPath}", truncateEx)
+            }
+            return
+        }
+
+        buffer.reset()
+        pendingSync.complete(Unit)
+        pendingSync = CompletableDeferred()
+
+        if (log.size() > compactThresholdBytes) {
+            try {
+                compact(log)
+            } catch (ex: IOException) {
+                logger.error("Failed to compact ${logFile.canonicalPath}", ex)
+            }
+        }
+    }
+
+    /**
+     * Writes the complete state to the snapshot file, replacing it atomically, and truncates the log.
+     */
+    private fun compact(log: FileChannel) {
+        val temp = File(directory, snapshotFile.name + ".tmp")
+        FileOutputStream(temp).use { fileOut ->
+            val out = DataOutputStream(BufferedOutputStream(fileOut))
+
+            for ((uuid, name) in playerNames) {
+                out.writeRecord(encode(PLAYER_NAME) { writeUUID(uuid); writeUTF(name) })
+            }
+
+            for (world in worlds.values) {
+                world.creationTime?.let { time ->
+                    out.writeRecord(encode(WORLD_CREATION_TIME) { writeWorld(world.id); writeLong(time.millis) })
+                }
+                for ((key, data) in world.parcels) {
+                    out.writeRecord(encode(PARCEL_DATA) { writeWorld(world.id); writeLong(key); writeData(data) })
+                }
+            }
+
+            for ((owner, privileges) in globalPrivileges.values) {
+                out.writeRecord(encode(GLOBAL_PRIVILEGES) { writeProfile(owner); writePrivileges(privileges) })
+            }
+
+            out.flush()
+            fileOut.fd.sync()
+        }
+
+        Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        // the log must not be truncated before the rename is durable, which it is once the directory is synced
+        syncDirectory()
+        log.truncate(0)
+        log.force(true)
+    }
+
+    private fun syncDirectory() {
+        try {
+            FileChannel.open(directory.toPath(), StandardOpenOption.READ).use { it.force(true) }
+        } catch (ex: IOException) {
+            // directories can not be opened on some platforms, such as Windows, where the rename is journaled by the file system
+            if (!System.getProperty("os.name").startsWith("Windows")) throw ex
+        }
+    }
+
+    /**
+     * Applies the records in the given [file] to the state.
+     * Returns the length of the file up to the first record that is incomplete or corrupt.
+     */
+    private fun replay(file: File): Long {
+        if (!file.exists()) return 0
+        var validLength = 0L
+        var count = 0
+        DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+            val crc = CRC32()
+            while (true) {
+                val length = try {
+                    input.readInt()
+                } catch (ex: EOFException) {
+                    break
+                }
+                if (length !in 1..MAX_RECORD_SIZE) break
+
+                val bytes = ByteArray(length)
+                try {
+                    val checksum = input.readInt()
+                    input.readFully(bytes)
+                    crc.reset()
+                    crc.update(bytes)
+                    if (crc.value.toInt() != checksum) break
+                } catch (ex: EOFException) {
+                    break
+                }
+
+                applyRecord(bytes)
+                validLength += 8 + length
+                count++
+            }
+        }
+        logger.info("Replayed $count records from ${file.canonicalPath}")
+        return validLength
+    }
+
+    private inline fun encode(type: Int, write: DataOutputStream.() -> Unit): ByteArray {
+        val out = ByteArrayOutputStream()
+        DataOutputStream(out).apply { writeByte(type); write() }.flush()
+        return out.toByteArray()
+    }
+
+    private fun DataOutputStream.writeRecord(record: ByteArray) {
+        val crc = CRC32()
+        crc.update(record)
+        writeInt(record.size)
+        writeInt(crc.value.toInt())
+        write(record)
+    }
+
+    /**
+     * Applies a change to the state and appends its record to the buffer.
+     * The state is only ever changed by applying records, such that replaying the log restores it exactly.
+     */
+    private inline fun commit(type: Int, write: DataOutputStream.() -> Unit) {
+        val record = encode(type, write)
+        applyRecord(record)
+        DataOutputStream(buffer).writeRecord(record)
+    }
+
+    private fun applyRecord(record: ByteArray) = DataInputStream(ByteArrayInputStream(record)).applyRecord()
+
+    private fun DataInputStream.applyRecord() {
+        when (readByte().toInt()) {
+            WORLD_CREATION_TIME -> worldState(readWorld()).creationTime = DateTime(readLong())
+            PLAYER_NAME -> {
+                val uuid = readUUID()
+                val name = readUTF()
+                playerNames.put(uuid, name)?.let { uuidsByName.remove(it.toLowerCase()) }
+                uuidsByName[name.toLowerCase()] = uuid
+            }
+            PARCEL_DATA -> worldState(readWorld()).parcels[readLong()] = readData()
+            PARCEL_CLEARED -> worldState(readWorld()).parcels.remove(readLong())
+            PARCEL_OWNER -> updateParcel(readWorld(), readLong()) {
+                owner = readProfile()
+                lastClaimTime = readLong().let { if (it == -1L) null else DateTime(it) }
+                isOwnerSignOutdated = false
+            }
+            PARCEL_OWNER_SIGN_OUTDATED -> updateParcel(readWorld(), readLong()) { isOwnerSignOutdated = readBoolean() }
+            LOCAL_PRIVILEGE -> updateParcel(readWorld(), readLong()) {
+                val player = readProfile() as PlayerProfile.Real
+                setRawStoredPrivilege(player, Privilege.getByNumber(readByte().toInt()) ?: return@updateParcel)
+            }
+            PARCEL_INTERACT_CONFIG -> updateParcel(readWorld(), readLong()) { readBitmask(interactableConfig) }
+            GLOBAL_PRIVILEGE -> {
+                val owner = readProfile()!!
+                val player = readProfile() as PlayerProfile.Real
+                val privilege = Privilege.getByNumber(readByte().toInt()) ?: return
+                globalPrivilegesOf(owner).setRawStoredPrivilege(player, privilege)
+            }
+            GLOBAL_PRIVILEGES -> {
+                val owner = readProfile()!!
+                readPrivileges(globalPrivilegesOf(owner))
+            }
+            else -> throw IOException("Unknown record type")
+        }
+    }
+
+    private fun worldState(world: ParcelWorldId) = worlds.getOrPut(world.name) { WorldState(world) }
+
+    private inline fun updateParcel(world: ParcelWorldId, key: Long, update: ParcelDataHolder.() -> Unit) {
+        val parcels = worldState(world).parcels
+        val data = parcels.getOrPut(key) { ParcelDataHolder() }
+        data.update()
+        // parcels without data are not kept
+        if (data.owner == null && !data.hasAnyDeclaredPrivileges() && data.interactableConfig.isDefault()) {
+            parcels.remove(key)
+        }
+    }
+
+    private fun profileKey(profile: PlayerProfile): Any = profile.uuid ?: profile.name!!.toLowerCase()
+
+    private fun globalPrivilegesOf(owner: PlayerProfile) =
+        globalPrivileges.getOrPut(profileKey(owner)) { owner to PrivilegesHolder() }.second
+
+    private fun PlayerProfile.toStoredProfile(): PlayerProfile = when (this) {
+        is PlayerProfile.Unresolved -> resolve(uuidsByName[name.toLowerCase()] ?: throw IllegalArgumentException("Unknown player: $name"))
+        else -> this
+    }
+
+    private fun PlayerProfile.toRealProfile(): PlayerProfile.Real = toStoredProfile() as? PlayerProfile.Real
+        ?: throw IllegalArgumentException("Fake profiles are not accepted")
+
+    private fun ParcelDataHolder.copy() = ParcelDataHolder().also { copy ->
+        copy.owner = owner
+        copy.lastClaimTime = lastClaimTime
+        copy.isOwnerSignOutdated = isOwnerSignOutdated
+        copy.interactableConfig.copyFrom(interactableConfig)
+        copyPrivilegesTo(copy)
+    }
+
+    private fun RawPrivileges.copyPrivilegesTo(target: PrivilegesHolder) {
+        target.privilegeOfStar = privilegeOfStar
+        for ((key, privilege) in privilegeMap) {
+            target.setRawStoredPrivilege(key, privilege)
+        }
+    }
+
+
+    override fun getWorldCreationTime(worldId: ParcelWorldId): DateTime? {
+        return worlds[worldId.name]?.creationTime
+    }
+
+    override fun setWorldCreationTime(worldId: ParcelWorldId, time: DateTime) = commit(WORLD_CREATION_TIME) {
+        writeWorld(worldId)
+        writeLong(time.millis)
+    }
+
+    override fun getPlayerUuidForName(name: String): UUID? {
+        return uuidsByName[name.toLowerCase()]
+    }
+
+    override fun updatePlayerName(uuid: UUID, name: String) {
+        if (playerNames[uuid] == name) return
+        commit(PLAYER_NAME) {
+            writeUUID(uuid)
+            writeUTF(name)
+        }
+    }
+
+    override fun transmitAllPlayerNames(channel: SendChannel<Pair<UUID, String>>) {
+        val uuids = onLogThread { playerNames.keys.toList() }
+        sendInPages(channel, uuids.asSequence()) { uuid -> playerNames[uuid]?.let { uuid to it } }
+        channel.close()
+    }
+
+    override fun transmitParcelData(channel: SendChannel<DataPair>, parcels: Sequence<ParcelId>) {
+        sendInPages(channel, parcels) { parcel -> parcel to readParcelData(parcel) }
+        channel.close()
+    }
+
+    override fun transmitAllParcelData(channel: SendChannel<DataPair>) {
+        val parcels = onLogThread { worlds.values.flatMap { getParcelIds(it) } }
+        sendParcelData(channel, parcels)
+        channel.close()
+    }
+
+    override fun transmitWorldParcelData(channel: SendChannel<DataPair>, world: ParcelWorldId) {
+        val parcels = onLogThread { worlds[world.name]?.let { getParcelIds(it) } }
+        if (parcels != null) sendParcelData(channel, parcels)
+        channel.close()
+    }
+
+    private fun getParcelIds(world: WorldState): List<ParcelId> =
+        world.parcels.keys.map { key -> fromParcelKey(key) { x, z -> ParcelId(world.id, x, z) } }
+
+    private fun sendParcelData(channel: SendChannel<DataPair>, parcels: List<ParcelId>) {
+        sendInPages(channel, parcels.asSequence()) { parcel -> readParcelData(parcel)?.let { parcel to it } }
+    }
+
+    override fun readParcelData(parcel: ParcelId): ParcelDataHolder? {
+        return worlds[parcel.worldId.name]?.parcels?.get(parcelKey(parcel.x, parcel.z))?.copy()
+    }
+
+    override fun getOwnedParcels(user: PlayerProfile): List<ParcelId> {
+        val key = profileKey(user.toStoredProfile())
+        val result = ArrayList<Pair<ParcelId, DateTime?>>()
+        for (world in worlds.values) {
+            for ((parcelKey, data) in world.parcels) {
+                val owner = data.owner ?: continue
+                if (profileKey(owner) != key) continue
+                result += fromParcelKey(parcelKey) { x, z -> ParcelId(world.id, x, z) } to data.lastClaimTime
+            }
+        }
+        return result.sortedBy { it.second?.millis ?: Long.MAX_VALUE }.map { it.first }
+    }
+
+    override fun getClaimedParcelKeys(world: ParcelWorldId): LongArray {
+        val parcels = worlds[world.name]?.parcels ?: return LongArray(0)
+        return parcels.entries.filter { it.value.owner != null }.map { it.key }.toLongArray()
+    }
+
+    override fun setParcelData(parcel: ParcelId, data: ParcelDataHolder?) {
+        if (data == null) {
+            commit(PARCEL_CLEARED) { writeParcel(parcel) }
+            return
+        }
+
+        // unresolved profiles are resolved before the data is encoded, so that the record can be replayed
+        val stored = data.copy()
+        stored.owner = data.owner?.toStoredProfile()
+        commit(PARCEL_DATA) {
+            writeParcel(parcel)
+            writeData(stored)
+        }
+    }
+
+    override fun setParcelOwner(parcel: ParcelId, owner: PlayerProfile?) = commit(PARCEL_OWNER) {
+        writeParcel(parcel)
+        writeProfile(owner?.toStoredProfile())
+        writeLong(if (owner == null) -1L else System.currentTimeMillis())
+    }
+
+    override fun setParcelOwnerSignOutdated(parcel: ParcelId, outdated: Boolean) = commit(PARCEL_OWNER_SIGN_OUTDATED) {
+        writeParcel(parcel)
+        writeBoolean(outdated)
+    }
+
+    override fun setLocalPrivilege(parcel: ParcelId, player: PlayerProfile, privilege: Privilege) {
+        privilege.requireNonTransient()
+        val profile = player.toRealProfile()
+        commit(LOCAL_PRIVILEGE) {
+            writeParcel(parcel)
+            writeProfile(profile)
+            writeByte(privilege.number)
+        }
+    }
+
+    override fun setParcelOptionsInteractConfig(parcel: ParcelId, config: InteractableConfiguration) = commit(PARCEL_INTERACT_CONFIG) {
+        writeParcel(parcel)
+        writeBitmask(config)
+    }
+
+    override fun transmitAllGlobalPrivileges(channel: SendChannel<PrivilegePair<PlayerProfile>>) {
+        val keys = onLogThread { globalPrivileges.keys.toList() }
+        sendInPages(channel, keys.asSequence()) { key ->
+            globalPrivileges[key]?.let { (owner, privileges) -> owner to PrivilegesHolder().also { privileges.copyPrivilegesTo(it) } }
+        }
+        channel.close()
+    }
+
+    override fun readGlobalPrivileges(owner: PlayerProfile): PrivilegesHolder? {
+        val privileges = globalPrivileges[profileKey(owner.toStoredProfile())]?.second ?: return null
+        return PrivilegesHolder().also { privileges.copyPrivilegesTo(it) }
+    }
+
+    override fun setGlobalPrivilege(owner: PlayerProfile, player: PlayerProfile, privilege: Privilege) {
+        privilege.requireNonTransient()
+        val ownerProfile = owner.toStoredProfile()
+        val profile = player.toRealProfile()
+        commit(GLOBAL_PRIVILEGE) {
+            writeProfile(ownerProfile)
+            writeProfile(profile)
+            writeByte(privilege.number)
+        }
+    }
+
+}
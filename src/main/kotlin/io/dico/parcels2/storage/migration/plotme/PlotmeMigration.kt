@@ -6,37 +6,59 @@ import com.zaxxer.hikari.HikariDataSource
 import io.dico.parcels2.*
 import io.dico.parcels2.options.PlotmeMigrationOptions
 import io.dico.parcels2.storage.Storage
-import io.dico.parcels2.storage.exposed.abs
-import io.dico.parcels2.storage.exposed.greaterOf
 import io.dico.parcels2.storage.migration.Migration
 import io.dico.parcels2.storage.migration.plotme.PlotmeTables.PlotmePlotPlayerMap
 import io.dico.parcels2.storage.migration.plotme.PlotmeTables.PlotmeTable
 import io.dico.parcels2.storage.toUUID
+import io.dico.parcels2.util.math.Vec2i
 import kotlinx.coroutines.Job
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.joinAll
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.newFixedThreadPoolContext
 import org.jetbrains.exposed.sql.*
 import org.slf4j.LoggerFactory
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
 import java.sql.Blob
+import java.util.Properties
 import java.util.UUID
+import java.util.concurrent.atomic.AtomicLong
 import javax.sql.DataSource
 
-class PlotmeMigration(val options: PlotmeMigrationOptions) : Migration {
+/**
+ * Migrates the plots of PlotMe to parcels.
+ *
+ * The worlds are migrated in parallel. The plots of a world are read in pages ordered by their position,
+ * together with the players that are allowed or denied on them, and each page is written to storage in one batch.
+ * The position of the last page that was written is kept in [checkpointFile], such that an interrupted migration resumes after it.
+ */
+class PlotmeMigration(val options: PlotmeMigrationOptions, val checkpointFile: File? = null) : Migration {
     private var dataSource: DataSource? = null
     private var database: Database? = null
     private var isShutdown: Boolean = false
     private val mlogger = LoggerFactory.getLogger("PlotMe Migrator")
     private val tables = PlotmeTables(options.tableNamesUppercase)
-    val dispatcher = newFixedThreadPoolContext(1, "PlotMe Migration Thread")
+    private val migratedRows = AtomicLong()
+    val dispatcher = newFixedThreadPoolContext(options.parallelism, "PlotMe Migration Thread")
 
     private fun <T> transaction(statement: Transaction.() -> T) = org.jetbrains.exposed.sql.transactions.transaction(database!!, statement)
 
     override fun migrateTo(storage: Storage): Job {
-        return launch(dispatcher) {
+        val job = launch(dispatcher) {
             init()
-            doWork(storage)
-            shutdown()
+            try {
+                doWork(storage)
+            } finally {
+                shutdown()
+            }
         }
+        // the threads of the dispatcher are stopped once the migration no longer runs on them
+        job.invokeOnCompletion { dispatcher.close() }
+        return job
     }
 
     fun init() {
@@ -54,57 +76,128 @@ class PlotmeMigration(val options: PlotmeMigrationOptions) : Migration {
         isShutdown = true
     }
 
-    suspend fun doWork(target: Storage) = with (tables) {
+    suspend fun doWork(target: Storage) {
         val exit = transaction {
-            (!PlotmePlots.exists()).also {
+            (!tables.PlotmePlots.exists()).also {
                 if (it) mlogger.warn("Plotme tables don't appear to exist. Exiting.")
             }
         }
         if (exit) return
 
-        val worldCache = options.worldsFromTo.mapValues { ParcelWorldId(it.value) }
-
-        fun getParcelId(table: PlotmeTable, row: ResultRow): ParcelId? {
-            val world = worldCache[row[table.world_name]] ?: return null
-            return ParcelId(world, row[table.px], row[table.pz])
-        }
+        val checkpoint = MigrationCheckpoint(checkpointFile)
+        val startTime = System.currentTimeMillis()
 
-        fun PlotmePlotPlayerMap.transmitPlotmeAddedTable(kind: Privilege) {
-            selectAll().forEach { row ->
-                val parcel = getParcelId(this, row) ?: return@forEach
-                val profile = PrivilegeKey.safe(row[player_uuid]?.toUUID(), row[player_name]) ?: return@forEach
-                target.setLocalPrivilege(parcel, profile, kind)
+        coroutineScope {
+            val progress = launch {
+                while (true) {
+                    delay(5000)
+                    logProgress(startTime)
+                }
             }
+
+            options.worldsFromTo
+                .map { (worldName, parcelWorldName) -> launch { migrateWorld(target, worldName, ParcelWorldId(parcelWorldName), checkpoint) } }
+                .joinAll()
+            progress.cancel()
         }
 
-        mlogger.info("Transmitting data from plotmeplots table")
-        var count = 0
-        transaction {
-
-            PlotmePlots.selectAll()
-                .orderBy(PlotmePlots.world_name)
-                .orderBy(greaterOf(PlotmePlots.px.abs(), PlotmePlots.pz.abs()))
-                .forEach { row ->
-                    val parcel = getParcelId(PlotmePlots, row) ?: return@forEach
-                    val owner = PlayerProfile.safe(row[PlotmePlots.owner_uuid]?.toUUID(), row[PlotmePlots.owner_name])
-                    target.setParcelOwner(parcel, owner)
-                    target.setParcelOwnerSignOutdated(parcel, true)
-                    ++count
-                }
+        logProgress(startTime)
+        checkpoint.delete()
+        mlogger.warn("Data has been migrated to the parcels database.")
+    }
+
+    private fun logProgress(startTime: Long) {
+        val rows = migratedRows.get()
+        val seconds = (System.currentTimeMillis() - startTime) / 1000.0
+        mlogger.info("Migrated $rows rows in ${seconds.toInt()}s (${(rows / seconds.coerceAtLeast(1.0)).toInt()} rows/s)")
+    }
+
+    private suspend fun migrateWorld(target: Storage, worldName: String, world: ParcelWorldId, checkpoint: MigrationCheckpoint) {
+        if (checkpoint.isComplete(worldName)) {
+            mlogger.info("Plots of world $worldName were migrated already")
+            return
         }
 
-        mlogger.info("Transmitting data from plotmeallowed table")
-        transaction {
-            PlotmeAllowed.transmitPlotmeAddedTable(Privilege.CAN_BUILD)
+        val resumeAfter = checkpoint.getPosition(worldName)
+        if (resumeAfter != null) mlogger.info("Resuming migration of world $worldName after plot ${resumeAfter.x};${resumeAfter.z}")
+        var position = resumeAfter
+
+        // the next page is read while the previous one is written, and the checkpoint is saved when it is written
+        var previous: Pair<Job, Vec2i>? = null
+        while (true) {
+            val page = transaction { readPage(worldName, position) }
+            if (page.isEmpty()) break
+            val last = page.last().first
+            position = last
+
+            val batch = target.setParcelDataBatch(page.map { (pos, data) -> ParcelId(world, pos) to data })
+            previous?.let { (job, pos) -> awaitBatch(job, worldName, pos, checkpoint) }
+            previous = batch to last
         }
 
-        mlogger.info("Transmitting data from plotmedenied table")
-        transaction {
-            PlotmeDenied.transmitPlotmeAddedTable(Privilege.BANNED)
+        previous?.let { (job, pos) -> awaitBatch(job, worldName, pos, checkpoint) }
+        checkpoint.setComplete(worldName)
+        mlogger.info("Migrated the plots of world $worldName")
+    }
+
+    private suspend fun awaitBatch(batch: Job, worldName: String, position: Vec2i, checkpoint: MigrationCheckpoint) {
+        batch.join()
+        if (batch.isCancelled) throw IllegalStateException("Failed to write the plots of world $worldName up to ${position.x};${position.z}")
+        checkpoint.setPosition(worldName, position)
+    }
+
+    /**
+     * Reads the plots of the given world after [position], with the players that are allowed or denied on them.
+     */
+    private fun readPage(worldName: String, position: Vec2i?): List<Pair<Vec2i, ParcelDataHolder>> = with(tables) {
+        val page = LinkedHashMap<Vec2i, ParcelDataHolder>()
+
+        PlotmePlots.select { PlotmePlots.isInWorldAfter(worldName, position) }
+            .orderBy(PlotmePlots.px)
+            .orderBy(PlotmePlots.pz)
+            .limit(options.pageSize)
+            .forEach { row ->
+                page[Vec2i(row[PlotmePlots.px], row[PlotmePlots.pz])] = ParcelDataHolder().apply {
+                    owner = PlayerProfile.safe(row[PlotmePlots.owner_uuid]?.toUUID(), row[PlotmePlots.owner_name])
+                    isOwnerSignOutdated = true
+                }
+            }
+
+        if (page.isEmpty()) return emptyList()
+        val first = page.keys.first()
+        val last = page.keys.last()
+        var rows = page.size
+        rows += PlotmeAllowed.readPrivileges(worldName, first, last, page, Privilege.CAN_BUILD)
+        rows += PlotmeDenied.readPrivileges(worldName, first, last, page, Privilege.BANNED)
+        migratedRows.addAndGet(rows.toLong())
+
+        return page.toList()
+    }
+
+    /**
+     * Sets the privileges of the plots from [first] to [last] in [page], and returns the number of rows read.
+     */
+    private fun PlotmePlotPlayerMap.readPrivileges(worldName: String, first: Vec2i, last: Vec2i,
+                                                   page: Map<Vec2i, ParcelDataHolder>, kind: Privilege): Int {
+        var rows = 0
+        select { isInWorldAfter(worldName, first, inclusive = true) and isBefore(last) }.forEach { row ->
+            rows++
+            val data = page[Vec2i(row[px], row[pz])] ?: return@forEach
+            val profile = PrivilegeKey.safe(row[player_uuid]?.toUUID(), row[player_name]) ?: return@forEach
+            data.setRawStoredPrivilege(profile, kind)
         }
+        return rows
+    }
+
+    private fun PlotmeTable.isInWorldAfter(worldName: String, position: Vec2i?, inclusive: Boolean = false): Op<Boolean> = with(SqlExpressionBuilder) {
+        val inWorld = world_name eq worldName
+        if (position == null) return inWorld
+        val afterZ = if (inclusive) pz greaterEq position.z else pz greater position.z
+        inWorld and ((px greater position.x) or ((px eq position.x) and afterZ))
+    }
 
-        mlogger.warn("Data has been **transmitted**. $count plots were migrated to the parcels database.")
-        mlogger.warn("Loading parcel data might take a while as enqueued transactions from this migration are completed.")
+    private fun PlotmeTable.isBefore(position: Vec2i): Op<Boolean> = with(SqlExpressionBuilder) {
+        (px less position.x) or ((px eq position.x) and (pz lessEq position.z))
     }
 
     private fun Blob.toUUID(): UUID? {
@@ -114,5 +207,42 @@ class PlotmeMigration(val options: PlotmeMigrationOptions) : Migration {
         return ba.toUUID()
     }
 
+    /**
+     * The position up to which each world was migrated, kept in [file].
+     */
+    private class MigrationCheckpoint(val file: File?) {
+        private val properties = Properties()
+
+        init {
+            file?.takeIf { it.exists() }?.reader()?.use { properties.load(it) }
+        }
+
+        fun isComplete(worldName: String) = synchronized(this) { properties.getProperty(worldName) == "complete" }
+
+        fun getPosition(worldName: String): Vec2i? = synchronized(this) {
+            val parts = properties.getProperty(worldName)?.split(',')?.takeIf { it.size == 2 } ?: return null
+            return Vec2i(parts[0].toInt(), parts[1].toInt())
+        }
+
+        fun setPosition(worldName: String, position: Vec2i) = set(worldName, "${position.x},${position.z}")
+
+        fun setComplete(worldName: String) = set(worldName, "complete")
+
+        // the file is replaced by a complete copy, such that an interruption does not leave it truncated
+        private fun set(worldName: String, value: String) = synchronized(this) {
+            properties.setProperty(worldName, value)
+            val file = file ?: return@synchronized
+            val temp = File(file.parentFile, file.name + ".tmp")
+            FileOutputStream(temp).use { out ->
+                properties.store(out.writer(), "Progress of the PlotMe migration")
+                out.fd.sync()
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        }
+
+        fun delete() {
+            file?.delete()
+        }
+    }
 
-}
\ No newline at end of file
+}
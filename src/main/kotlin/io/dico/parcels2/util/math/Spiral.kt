@@ -0,0 +1,49 @@
+package io.dico.parcels2.util.math
+
+/*
+ * Positions are walked in square rings around a center, starting with the center itself.
+ * Ring r (where r is the greatest of |x| and |z|) starts at (-r, -r) and goes along +x, +z, -x and -z in turn.
+ */
+
+/**
+ * The number of positions within [radius] of the center
+ */
+fun spiralSize(radius: Int) = (2 * radius + 1).let { it * it }
+
+/**
+ * Returns the index of the given position, relative to the center, in the spiral.
+ * Positions in ring r have indices from (2r-1)^2 to (2r+1)^2 exclusive.
+ */
+fun spiralIndexOf(x: Int, z: Int): Int {
+    val r = maxOf(Math.abs(x), Math.abs(z))
+    if (r == 0) return 0
+    val ringStart = (2 * r - 1) * (2 * r - 1)
+    return ringStart + when {
+        z == -r && x < r -> x + r
+        x == r && z < r -> 2 * r + z + r
+        z == r && x > -r -> 4 * r + r - x
+        else -> 6 * r + r - z
+    }
+}
+
+/**
+ * The inverse of [spiralIndexOf]
+ */
+inline fun <T> fromSpiralIndex(index: Int, block: (x: Int, z: Int) -> T): T {
+    if (index == 0) return block(0, 0)
+    val r = (Math.sqrt(index.toDouble()).toInt() + 1) / 2
+    val offset = index - (2 * r - 1) * (2 * r - 1)
+    val pos = offset % (2 * r)
+    return when (offset / (2 * r)) {
+        0 -> block(-r + pos, -r)
+        1 -> block(r, -r + pos)
+        2 -> block(r - pos, r)
+        else -> block(-r, r - pos)
+    }
+}
+
+/**
+ * Walks the positions within [radius] of the given center in spiral order.
+ */
+fun walkInSpiral(radius: Int, centerX: Int = 0, centerZ: Int = 0): Sequence<Vec2i> =
+    (0 until spiralSize(radius)).asSequence().map { index -> fromSpiralIndex(index) { x, z -> Vec2i(centerX + x, centerZ + z) } }
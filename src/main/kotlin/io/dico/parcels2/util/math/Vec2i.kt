@@ -7,3 +7,13 @@ data class Vec2i(
     fun add(ox: Int, oz: Int) = Vec2i(x + ox, z + oz)
     fun toChunk() = Vec2i(x shr 4, z shr 4)
 }
+
+/**
+ * Packs the given coordinates, such as those of a parcel, into one key for primitive maps and sets.
+ */
+fun parcelKey(x: Int, z: Int): Long = (x.toLong() shl 32) or (z.toLong() and 0xFFFFFFFFL)
+
+/**
+ * The inverse of [parcelKey]
+ */
+inline fun <T> fromParcelKey(key: Long, block: (x: Int, z: Int) -> T): T = block((key shr 32).toInt(), key.toInt())
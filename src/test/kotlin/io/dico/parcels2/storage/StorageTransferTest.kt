@@ -0,0 +1,125 @@
+package io.dico.parcels2.storage
+
+import io.dico.parcels2.*
+import io.dico.parcels2.storage.exposed.ExposedBacking
+import io.dico.parcels2.storage.exposed.newEmbeddedBacking
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.IOException
+import java.util.UUID
+
+/**
+ * Exports one embedded H2 storage and imports the export into another.
+ */
+class StorageTransferTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private lateinit var sourceBacking: ExposedBacking
+    private lateinit var targetBacking: ExposedBacking
+    private lateinit var source: Storage
+    private lateinit var target: Storage
+
+    private val world = ParcelWorldId("world")
+    private val parcel = ParcelId(world, 4, -2)
+    private val owner = PlayerProfile.Real(UUID(1L, 1L), "owner")
+    private val player = PlayerProfile.Real(UUID(2L, 2L), "player")
+    private val other = PlayerProfile.Real(UUID(3L, 3L), "other")
+
+    @Before
+    fun init() {
+        sourceBacking = newEmbeddedBacking(folder.newFolder("source"))
+        targetBacking = newEmbeddedBacking(folder.newFolder("target"))
+        source = BackedStorage(sourceBacking)
+        target = BackedStorage(targetBacking)
+    }
+
+    @After
+    fun shutdown() {
+        sourceBacking.shutdown()
+        targetBacking.shutdown()
+    }
+
+    private fun write(vararg jobs: Job) = runBlocking {
+        jobs.toList().joinAll()
+        assertTrue("A write failed", jobs.none { it.isCancelled })
+    }
+
+    private fun export(): File {
+        val file = File(folder.root, "export.bin")
+        val counts = runBlocking { exportStorage(source, file) }
+        assertEquals(TransferCounts(3, 1, 1), counts)
+        return file
+    }
+
+    private fun fillSource() = write(
+        source.updatePlayerName(owner.uuid, "owner"),
+        source.updatePlayerName(player.uuid, "player"),
+        source.updatePlayerName(other.uuid, "other"),
+        source.setParcelData(parcel, ParcelDataHolder().apply {
+            owner = this@StorageTransferTest.owner
+            setRawStoredPrivilege(player, Privilege.CAN_BUILD)
+        }),
+        source.setGlobalPrivilege(owner, player, Privilege.CAN_MANAGE)
+    )
+
+    @Test
+    fun importReplacesParcelsAndGlobalPrivileges() {
+        fillSource()
+        val file = export()
+
+        // privileges of the same owner that are not in the export are removed, including the privilege of the star
+        write(
+            target.setGlobalPrivilege(owner, other, Privilege.BANNED),
+            target.setGlobalPrivilege(owner, PlayerProfile.Star, Privilege.CAN_BUILD),
+            target.setParcelData(parcel, ParcelDataHolder().apply { owner = other })
+        )
+
+        val counts = runBlocking { importStorage(target, file) }
+        assertEquals(TransferCounts(3, 1, 1), counts)
+
+        runBlocking {
+            val data = target.readParcelData(parcel).await()!!
+            assertEquals(owner.uuid, data.owner?.uuid)
+            assertEquals(Privilege.CAN_BUILD, data.getRawStoredPrivilege(player))
+
+            val privileges = target.readGlobalPrivileges(owner).await()!!
+            assertEquals(mapOf<PrivilegeKey, Privilege>(player to Privilege.CAN_MANAGE), privileges.privilegeMap)
+            assertEquals(Privilege.DEFAULT, privileges.privilegeOfStar)
+
+            assertEquals(player.uuid, target.getPlayerUuidForName("player").await())
+        }
+    }
+
+    @Test(expected = IOException::class)
+    fun truncatedExportIsRefused() {
+        fillSource()
+        val file = export()
+        file.writeBytes(file.readBytes().let { it.copyOf(it.size - 16) })
+        runBlocking { importStorage(target, file) }
+    }
+
+    @Test
+    fun scheduledImportRunsOnce() {
+        fillSource()
+        val file = export()
+        val dataFolder = folder.newFolder("plugin")
+
+        assertFalse(isImportScheduled(dataFolder))
+        scheduleImport(dataFolder, file)
+        assertTrue(isImportScheduled(dataFolder))
+
+        assertEquals(TransferCounts(3, 1, 1), runBlocking { runScheduledImport(dataFolder, target) })
+        assertFalse(isImportScheduled(dataFolder))
+        assertNull(runBlocking { runScheduledImport(dataFolder, target) })
+    }
+
+}
@@ -0,0 +1,117 @@
+package io.dico.parcels2.storage
+
+import io.dico.parcels2.*
+import io.dico.parcels2.storage.exposed.ExposedBacking
+import io.dico.parcels2.storage.exposed.newEmbeddedBacking
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.DataOutputStream
+import java.io.File
+import java.util.UUID
+
+/**
+ * Spills writes to a file and replays them into an embedded H2 storage.
+ */
+class WriteSpillFileTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private lateinit var backing: ExposedBacking
+    private lateinit var storage: Storage
+    private lateinit var file: File
+
+    private val world = ParcelWorldId("world")
+    private val parcel = ParcelId(world, -1, 5)
+    private val owner = PlayerProfile.Real(UUID(1L, 1L), "owner")
+    private val player = PlayerProfile.Real(UUID(2L, 2L), "player")
+
+    @Before
+    fun init() {
+        backing = newEmbeddedBacking(folder.newFolder("database"))
+        storage = BackedStorage(backing)
+        file = File(folder.newFolder("spill"), "spilled-writes.bin")
+    }
+
+    @After
+    fun shutdown() {
+        backing.shutdown()
+    }
+
+    private val writes = listOf<DataOutputStream.() -> Unit>(
+        { spillPlayerName(owner.uuid, "owner") },
+        { spillParcelData(parcel, ParcelDataHolder().apply { owner = this@WriteSpillFileTest.owner }) },
+        { spillParcelOwnerSignOutdated(parcel, true) },
+        { spillLocalPrivilege(parcel, player, Privilege.CAN_BUILD) },
+        { spillGlobalPrivilege(owner, player, Privilege.BANNED) }
+    )
+
+    private fun assertReplayed() = runBlocking {
+        val data = storage.readParcelData(parcel).await()!!
+        assertEquals(owner.uuid, data.owner?.uuid)
+        assertTrue(data.isOwnerSignOutdated)
+        assertEquals(Privilege.CAN_BUILD, data.getRawStoredPrivilege(player))
+        assertEquals(Privilege.BANNED, storage.readGlobalPrivileges(owner).await()!!.getRawStoredPrivilege(player))
+        assertEquals(owner.uuid, storage.getPlayerUuidForName("owner").await())
+    }
+
+    @Test
+    fun appendAndReplay() {
+        val spill = WriteSpillFile(file)
+        spill.append(writes.take(2))
+        spill.append(writes.drop(2))
+
+        assertEquals(writes.size, runBlocking { spill.replay(storage) })
+        assertFalse(file.exists())
+        assertReplayed()
+
+        // nothing is replayed once the file is deleted
+        assertEquals(0, runBlocking { spill.replay(storage) })
+    }
+
+    @Test
+    fun unknownRecordStopsReplayAndKeepsFile() {
+        val spill = WriteSpillFile(file)
+        spill.append(writes)
+        spill.append(listOf<DataOutputStream.() -> Unit>({ writeByte(127) }))
+        spill.append(listOf<DataOutputStream.() -> Unit>({ spillParcelOwner(parcel, player) }))
+
+        assertEquals(writes.size, runBlocking { spill.replay(storage) })
+        assertFalse(file.exists())
+        assertEquals(1, file.parentFile.listFiles { _, name -> name.startsWith(file.name + ".invalid") }.size)
+
+        // the record after the invalid one is not replayed
+        assertReplayed()
+    }
+
+    @Test
+    fun corruptRecordStopsReplayAndKeepsFile() {
+        val spill = WriteSpillFile(file)
+        spill.append(writes)
+        spill.append(listOf<DataOutputStream.() -> Unit>({ spillParcelOwner(parcel, player) }))
+        file.writeBytes(file.readBytes().also { it[it.size - 1] = (it[it.size - 1] + 1).toByte() })
+
+        assertEquals(writes.size, runBlocking { spill.replay(storage) })
+        assertFalse(file.exists())
+        assertEquals(1, file.parentFile.listFiles { _, name -> name.startsWith(file.name + ".invalid") }.size)
+        assertReplayed()
+    }
+
+    @Test
+    fun failedWriteKeepsFile() {
+        val spill = WriteSpillFile(file)
+        spill.append(writes)
+        // fake profiles are refused by the backing, so this write fails when it is replayed
+        spill.append(listOf<DataOutputStream.() -> Unit>({ spillLocalPrivilege(parcel, PlayerProfile.Fake("fake"), Privilege.CAN_BUILD) }))
+
+        assertEquals(writes.size, runBlocking { spill.replay(storage) })
+        assertFalse(file.exists())
+        assertEquals(1, file.parentFile.listFiles { _, name -> name.startsWith(file.name + ".invalid") }.size)
+        assertReplayed()
+    }
+
+}
@@ -0,0 +1,181 @@
+package io.dico.parcels2.storage.exposed
+
+import io.dico.parcels2.*
+import io.dico.parcels2.storage.Backing
+import io.dico.parcels2.storage.toByteArray
+import io.dico.parcels2.storage.toIntArray
+import kotlinx.coroutines.runBlocking
+import org.jetbrains.exposed.sql.*
+import org.joda.time.DateTime
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.util.UUID
+
+/**
+ * Checks that the statements built by [CachedSql] leave and read the same rows as the DSL statements they replaced,
+ * against the embedded H2 database in the MySQL mode that the plugin uses.
+ */
+class CachedSqlH2Test {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private lateinit var backing: ExposedBacking
+
+    private val world = ParcelWorldId("world")
+    private val owner = PlayerProfile.Real(UUID(1L, 1L), "owner")
+    private val player = PlayerProfile.Real(UUID(2L, 2L), "player")
+
+    @Before
+    fun init() {
+        backing = newEmbeddedBacking(folder.root)
+    }
+
+    @After
+    fun shutdown() {
+        backing.shutdown()
+    }
+
+    private fun <T> query(future: Backing.() -> T): T = runBlocking { backing.launchFuture(future).await() }
+
+    @Test
+    fun setOwnerMatchesDsl() {
+        val viaSql = ParcelId(world, 0, 0)
+        val viaDsl = ParcelId(world, 1, 0)
+        val claimTime = DateTime(1_500_000_000_000L)
+
+        fun row(parcel: ParcelId) = query {
+            ParcelsT.getRow(parcel)!!.let { listOf(it[ParcelsT.owner_id], it[ParcelsT.claim_time], it[ParcelsT.sign_oudated]) }
+        }
+
+        for (newOwner in listOf(owner, null)) {
+            query {
+                val ownerId = newOwner?.let { ProfilesT.getOrInitId(it) }
+                val time = newOwner?.let { claimTime }
+                val sqlId = ParcelsT.getOrInitId(viaSql)
+                val dslId = ParcelsT.getOrInitId(viaDsl)
+                ParcelsT.update({ ParcelsT.id inList listOf(sqlId, dslId) }) { it[ParcelsT.sign_oudated] = true }
+
+                ParcelsT.setOwner(sqlId, ownerId, time)
+                ParcelsT.update({ ParcelsT.id eq dslId }) {
+                    it[ParcelsT.owner_id] = ownerId
+                    it[ParcelsT.claim_time] = time
+                    it[ParcelsT.sign_oudated] = false
+                }
+            }
+
+            assertEquals(row(viaDsl), row(viaSql))
+        }
+    }
+
+    @Test
+    fun updateNameMatchesDsl() {
+        val viaSql = UUID(3L, 3L)
+        val viaDsl = UUID(4L, 4L)
+
+        fun row(uuid: UUID) = query {
+            ProfilesT.select { ProfilesT.uuid eq uuid.toByteArray() }.map { it[ProfilesT.name] to it[ProfilesT.name_lower] }
+        }
+
+        for (name in listOf("First", "Second")) {
+            query {
+                ProfilesT.updateName(viaSql, name)
+                ProfilesT.upsert(ProfilesT.uuid) {
+                    it[ProfilesT.uuid] = viaDsl.toByteArray()
+                    it[ProfilesT.name] = name
+                    it[ProfilesT.name_lower] = name.toLowerCase()
+                }
+            }
+
+            assertEquals(row(viaDsl), row(viaSql))
+            assertEquals(1, row(viaSql).size)
+        }
+    }
+
+    @Test
+    fun setPrivilegeMatchesDsl() {
+        val viaSql = ParcelId(world, 0, 1)
+        val viaDsl = ParcelId(world, 1, 1)
+
+        fun rows(parcel: ParcelId) = query {
+            val id = ParcelsT.getId(parcel) ?: return@query emptySet<Pair<Int, Int>>()
+            val l = PrivilegesLocalT
+            l.select { l.attach_id eq id }.map { it[l.profile_id] to it[l.privilege] }.toSet()
+        }
+
+        for (value in listOf(Privilege.CAN_BUILD, Privilege.BANNED, Privilege.DEFAULT, Privilege.DEFAULT)) {
+            query {
+                PrivilegesLocalT.setPrivilege(viaSql, player, value)
+
+                val l = PrivilegesLocalT
+                val holder = ParcelsT.getOrInitId(viaDsl)
+                val playerId = ProfilesT.getOrInitId(player)
+                if (value == Privilege.DEFAULT) {
+                    l.deleteWhere { (l.attach_id eq holder) and (l.profile_id eq playerId) }
+                } else {
+                    l.upsert(conflictIndex = l.index_pair) {
+                        it[l.attach_id] = holder
+                        it[l.profile_id] = playerId
+                        it[l.privilege] = value.number
+                    }
+                }
+            }
+
+            assertEquals(rows(viaDsl), rows(viaSql))
+        }
+    }
+
+    @Test
+    fun readParcelDataMatchesDsl() {
+        val parcel = ParcelId(world, 2, 2)
+        runBlocking {
+            val data = ParcelDataHolder().apply {
+                owner = this@CachedSqlH2Test.owner
+                isOwnerSignOutdated = true
+                setRawStoredPrivilege(player, Privilege.CAN_MANAGE)
+                (interactableConfig as BitmaskInteractableConfiguration).bitmaskArray[0] = 5
+            }
+            val completion = backing.launchJob {
+                setParcelData(parcel, data)
+                setParcelOptionsInteractConfig(parcel, data.interactableConfig)
+            }
+            completion.join()
+            assertFalse("The write failed", completion.isCancelled)
+        }
+
+        val (viaSql, viaDsl) = query {
+            val id = ParcelsT.getId(parcel)!!
+            readParcelDataById(id)!! to readParcelDataWithDsl(id)
+        }
+
+        assertEquals(viaDsl.owner?.uuid, viaSql.owner?.uuid)
+        assertEquals(viaDsl.owner?.name, viaSql.owner?.name)
+        assertEquals(viaDsl.lastClaimTime, viaSql.lastClaimTime)
+        assertEquals(viaDsl.isOwnerSignOutdated, viaSql.isOwnerSignOutdated)
+        assertEquals(viaDsl.privilegeMap, viaSql.privilegeMap)
+        assertArrayEquals(
+            (viaDsl.interactableConfig as BitmaskInteractableConfiguration).bitmaskArray,
+            (viaSql.interactableConfig as BitmaskInteractableConfiguration).bitmaskArray)
+        assertEquals(5, (viaSql.interactableConfig as BitmaskInteractableConfiguration).bitmaskArray[0])
+    }
+
+}
+
+// the DSL queries that readParcelDataById replaced
+internal fun readParcelDataWithDsl(id: Int) = ParcelDataHolder().apply {
+    val row = ParcelsT.select { ParcelsT.id eq id }.first()
+    owner = row[ParcelsT.owner_id]?.let { ProfilesT.getItem(it) }
+    lastClaimTime = row[ParcelsT.claim_time]
+    isOwnerSignOutdated = row[ParcelsT.sign_oudated]
+
+    ParcelOptionsT.select { ParcelOptionsT.parcel_id eq id }.firstOrNull()?.let { optrow ->
+        val source = optrow[ParcelOptionsT.interact_bitmask].toIntArray()
+        val target = (interactableConfig as BitmaskInteractableConfiguration).bitmaskArray
+        System.arraycopy(source, 0, target, 0, Math.min(source.size, target.size))
+    }
+
+    PrivilegesLocalT.readPrivileges(id)?.let { copyPrivilegesFrom(it) }
+}
@@ -0,0 +1,135 @@
+package io.dico.parcels2.storage.exposed
+
+import io.dico.parcels2.*
+import io.dico.parcels2.storage.Backing
+import io.dico.parcels2.storage.toByteArray
+import kotlinx.coroutines.runBlocking
+import org.jetbrains.exposed.sql.*
+import org.joda.time.DateTime
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.util.UUID
+
+/**
+ * Compares how many statements per second [CachedSql] and the DSL statements it replaced run against the embedded H2 database.
+ * Each form is warmed up and timed in one transaction, such that the numbers do not include taking a connection from the pool.
+ * The results are printed rather than asserted, because they depend on the machine, see [CachedSqlH2Test] for equivalence.
+ */
+class CachedSqlThroughputH2Test {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private lateinit var backing: ExposedBacking
+
+    private val world = ParcelWorldId("world")
+    private val owner = PlayerProfile.Real(UUID(1L, 1L), "owner")
+    private val player = PlayerProfile.Real(UUID(2L, 2L), "player")
+
+    private val warmupIterations = 1000
+    private val timedIterations = 5000
+
+    @Before
+    fun init() {
+        backing = newEmbeddedBacking(folder.root)
+    }
+
+    @After
+    fun shutdown() {
+        backing.shutdown()
+    }
+
+    private fun <T> query(future: Backing.() -> T): T = runBlocking { backing.launchFuture(future).await() }
+
+    private fun opsPerSecond(operation: (Int) -> Unit): Double = query {
+        repeat(warmupIterations) { operation(it) }
+        val start = System.nanoTime()
+        repeat(timedIterations) { operation(it) }
+        timedIterations * 1e9 / (System.nanoTime() - start)
+    }
+
+    private fun compare(name: String, viaDsl: (Int) -> Unit, viaSql: (Int) -> Unit) {
+        val dsl = opsPerSecond(viaDsl)
+        val sql = opsPerSecond(viaSql)
+        println("%-14s DSL %9.0f ops/s, CachedSql %9.0f ops/s, %.2fx".format(name, dsl, sql, sql / dsl))
+    }
+
+    @Test
+    fun setOwner() {
+        val (ownerId, sqlId, dslId) = query {
+            listOf(ProfilesT.getOrInitId(owner), ParcelsT.getOrInitId(ParcelId(world, 0, 0)), ParcelsT.getOrInitId(ParcelId(world, 1, 0)))
+        }
+        val claimTime = DateTime(1_500_000_000_000L)
+
+        compare("setOwner", viaDsl = {
+            val newOwner = if (it % 2 == 0) ownerId else null
+            ParcelsT.update({ ParcelsT.id eq dslId }) { row ->
+                row[ParcelsT.owner_id] = newOwner
+                row[ParcelsT.claim_time] = newOwner?.let { claimTime }
+                row[ParcelsT.sign_oudated] = false
+            }
+        }, viaSql = {
+            val newOwner = if (it % 2 == 0) ownerId else null
+            ParcelsT.setOwner(sqlId, newOwner, newOwner?.let { claimTime })
+        })
+    }
+
+    @Test
+    fun updateName() {
+        val viaSql = UUID(3L, 3L)
+        val viaDsl = UUID(4L, 4L)
+
+        compare("updateName", viaDsl = {
+            val name = "name${it % 2}"
+            ProfilesT.upsert(ProfilesT.uuid) { row ->
+                row[ProfilesT.uuid] = viaDsl.toByteArray()
+                row[ProfilesT.name] = name
+                row[ProfilesT.name_lower] = name.toLowerCase()
+            }
+        }, viaSql = {
+            ProfilesT.updateName(viaSql, "name${it % 2}")
+        })
+    }
+
+    @Test
+    fun setPrivilege() {
+        val viaSql = ParcelId(world, 0, 1)
+        val viaDsl = ParcelId(world, 1, 1)
+        val values = listOf(Privilege.CAN_BUILD, Privilege.BANNED, Privilege.DEFAULT)
+
+        compare("setPrivilege", viaDsl = {
+            val value = values[it % values.size]
+            val l = PrivilegesLocalT
+            val holder = ParcelsT.getOrInitId(viaDsl)
+            val playerId = ProfilesT.getOrInitId(player)
+            if (value == Privilege.DEFAULT) {
+                l.deleteWhere { (l.attach_id eq holder) and (l.profile_id eq playerId) }
+            } else {
+                l.upsert(conflictIndex = l.index_pair) { row ->
+                    row[l.attach_id] = holder
+                    row[l.profile_id] = playerId
+                    row[l.privilege] = value.number
+                }
+            }
+        }, viaSql = {
+            PrivilegesLocalT.setPrivilege(viaSql, player, values[it % values.size])
+        })
+    }
+
+    @Test
+    fun readParcelData() {
+        val parcel = ParcelId(world, 2, 2)
+        val id = query {
+            setParcelData(parcel, ParcelDataHolder().apply {
+                owner = this@CachedSqlThroughputH2Test.owner
+                setRawStoredPrivilege(player, Privilege.CAN_MANAGE)
+            })
+            ParcelsT.getId(parcel)!!
+        }
+
+        compare("readParcelData", viaDsl = { readParcelDataWithDsl(id) }, viaSql = { readParcelDataById(id) })
+    }
+
+}
@@ -0,0 +1,17 @@
+package io.dico.parcels2.storage.exposed
+
+import com.zaxxer.hikari.HikariDataSource
+import io.dico.parcels2.options.EmbeddedDatabaseOptions
+import io.dico.parcels2.storage.getEmbeddedHikariConfig
+import java.io.File
+
+/**
+ * Creates and initializes a backing of an embedded H2 database in [folder], configured like the embedded storage of the plugin.
+ */
+fun newEmbeddedBacking(folder: File, poolSize: Int = 4, groupCommitSize: Int = 1): ExposedBacking {
+    val options = EmbeddedDatabaseOptions(poolSize = poolSize, groupCommitSize = groupCommitSize, writeDelayMillis = 0)
+    val hikariConfig = getEmbeddedHikariConfig(File(folder, options.location), options)
+    val backing = ExposedBacking({ HikariDataSource(hikariConfig) }, poolSize, options.channelCapacity, groupCommitSize)
+    backing.init()
+    return backing
+}
@@ -0,0 +1,133 @@
+package io.dico.parcels2.storage.exposed
+
+import io.dico.parcels2.*
+import io.dico.parcels2.storage.Backing
+import io.dico.parcels2.storage.DataPair
+import io.dico.parcels2.storage.toByteArray
+import kotlinx.coroutines.runBlocking
+import org.jetbrains.exposed.sql.insertIgnore
+import org.jetbrains.exposed.sql.select
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.util.UUID
+
+/**
+ * Runs the write and read paths of [ExposedBacking] against the embedded H2 database, in the MySQL mode that the plugin uses.
+ * H2 is not supported by [ProfilesT.insertOrGetId], so ids are inserted with INSERT IGNORE, which is checked separately.
+ */
+class ExposedBackingH2Test {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private lateinit var backing: ExposedBacking
+
+    private val world = ParcelWorldId("world")
+    private val parcel = ParcelId(world, 3, -7)
+    private val owner = PlayerProfile.Real(UUID(1L, 1L), "owner")
+    private val player = PlayerProfile.Real(UUID(2L, 2L), "player")
+
+    @Before
+    fun init() {
+        backing = newEmbeddedBacking(folder.root, poolSize = 2, groupCommitSize = 4)
+    }
+
+    @After
+    fun shutdown() {
+        backing.shutdown()
+    }
+
+    private fun <T> query(future: Backing.() -> T): T = runBlocking { backing.launchFuture(future).await() }
+
+    private fun write(job: Backing.() -> Unit) = runBlocking {
+        val completion = backing.launchJob(job)
+        completion.join()
+        assertFalse("The write failed", completion.isCancelled)
+    }
+
+    @Test
+    fun parcelData() {
+        assertNull(query { readParcelData(parcel) })
+
+        write {
+            setParcelData(parcel, ParcelDataHolder().apply {
+                owner = this@ExposedBackingH2Test.owner
+                setRawStoredPrivilege(player, Privilege.CAN_BUILD)
+            })
+        }
+
+        val data = query { readParcelData(parcel) }!!
+        assertEquals(owner.uuid, data.owner?.uuid)
+        assertNotNull(data.lastClaimTime)
+        assertEquals(Privilege.CAN_BUILD, data.getRawStoredPrivilege(player))
+        assertEquals(listOf(parcel), query { getOwnedParcels(owner) })
+
+        write {
+            setParcelOwner(parcel, player)
+            setParcelOwnerSignOutdated(parcel, true)
+            setLocalPrivilege(parcel, owner, Privilege.BANNED)
+            setLocalPrivilege(parcel, player, Privilege.DEFAULT)
+        }
+
+        val changed = query { readParcelData(parcel) }!!
+        assertEquals(player.uuid, changed.owner?.uuid)
+        assertTrue(changed.isOwnerSignOutdated)
+        assertEquals(Privilege.BANNED, changed.getRawStoredPrivilege(owner))
+        assertEquals(Privilege.DEFAULT, changed.getRawStoredPrivilege(player))
+        assertTrue(query { getOwnedParcels(owner) }.isEmpty())
+
+        write { setParcelData(parcel, null) }
+        assertNull(query { readParcelData(parcel) })
+    }
+
+    @Test
+    fun transmitParcelData() {
+        val parcels = List(10) { ParcelId(world, it, it) }
+        write {
+            for (parcel in parcels) setParcelOwner(parcel, owner)
+        }
+
+        val received = runBlocking {
+            val result = ArrayList<DataPair>()
+            for (pair in backing.openChannel<DataPair> { transmitWorldParcelData(it, world) }) result += pair
+            result
+        }
+        assertEquals(parcels.toSet(), received.map { it.first }.toSet())
+        assertTrue(received.all { it.second?.owner?.uuid == owner.uuid })
+    }
+
+    @Test
+    fun playerNames() {
+        write { updatePlayerName(owner.uuid, "first") }
+        write { updatePlayerName(owner.uuid, "second") }
+
+        assertEquals(owner.uuid, query { getPlayerUuidForName("Second") })
+        assertNull(query { getPlayerUuidForName("first") })
+    }
+
+    @Test
+    fun globalPrivileges() {
+        write { setGlobalPrivilege(owner, player, Privilege.CAN_MANAGE) }
+        write { setGlobalPrivilege(owner, PlayerProfile.Star, Privilege.CAN_BUILD) }
+
+        val privileges = query { readGlobalPrivileges(owner) }!!
+        assertEquals(Privilege.CAN_MANAGE, privileges.getRawStoredPrivilege(player))
+        assertEquals(Privilege.CAN_BUILD, privileges.privilegeOfStar)
+    }
+
+    @Test
+    fun insertIgnoreSkipsConflictingRows() {
+        val binaryUuid = owner.uuid.toByteArray()
+        val id = query { ProfilesT.getOrInitId(owner) }
+
+        val rows = query {
+            ProfilesT.insertIgnore { it[ProfilesT.uuid] = binaryUuid; it[ProfilesT.name] = "other" }
+            ProfilesT.select { ProfilesT.uuid eq binaryUuid }.map { it[ProfilesT.id] to it[ProfilesT.name] }
+        }
+        assertEquals(listOf(id to owner.name), rows)
+    }
+
+}
@@ -0,0 +1,94 @@
+package io.dico.parcels2.storage.exposed
+
+import io.dico.parcels2.ParcelId
+import io.dico.parcels2.ParcelWorldId
+import io.dico.parcels2.PlayerProfile
+import io.dico.parcels2.storage.stripe
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicInteger
+
+class ExposedBackingStripeTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private var backing: ExposedBacking? = null
+
+    @After
+    fun shutdown() {
+        backing?.shutdown()
+    }
+
+    @Test
+    fun jobsOfStripeRunInOrder() = testOrder(groupCommitSize = 1)
+
+    @Test
+    fun jobsOfStripeRunInOrderWithGroupCommit() = testOrder(groupCommitSize = 16)
+
+    /**
+     * Launches interleaved owner changes to several parcels, and checks that each parcel ends up with the owner that was set last,
+     * and that no more jobs run at once than there are connections in the pool.
+     */
+    private fun testOrder(groupCommitSize: Int) = runBlocking {
+        val poolSize = 4
+        val backing = newEmbeddedBacking(folder.root, poolSize, groupCommitSize).also { this@ExposedBackingStripeTest.backing = it }
+
+        val world = ParcelWorldId("world")
+        val parcels = List(8) { ParcelId(world, it, -it) }
+        val owners = List(50) { PlayerProfile.Real(UUID(0L, it.toLong() + 1), "player$it") }
+
+        val running = AtomicInteger()
+        val maxRunning = AtomicInteger()
+        val jobs = ArrayList<Job>()
+        for (owner in owners) {
+            for (parcel in parcels) {
+                jobs += backing.launchJob(parcel.stripe) {
+                    maxRunning.accumulateAndGet(running.incrementAndGet()) { a, b -> maxOf(a, b) }
+                    try {
+                        setParcelOwner(parcel, owner)
+                    } finally {
+                        running.decrementAndGet()
+                    }
+                }
+            }
+        }
+
+        jobs.joinAll()
+        assertTrue("Some jobs failed", jobs.none { it.isCancelled })
+        assertTrue("${maxRunning.get()} jobs ran at once", maxRunning.get() <= poolSize)
+
+        for (parcel in parcels) {
+            val data = backing.launchFuture { readParcelData(parcel) }.await()
+            assertEquals(owners.last().uuid, data?.owner?.uuid)
+        }
+    }
+
+    /**
+     * A job that throws an error, rather than an exception, fails its batch, but jobs launched on the stripe after it still run.
+     */
+    @Test
+    fun stripeKeepsDrainingAfterError() = runBlocking {
+        val backing = newEmbeddedBacking(folder.root, groupCommitSize = 4).also { this@ExposedBackingStripeTest.backing = it }
+        val parcel = ParcelId(ParcelWorldId("world"), 0, 0)
+        val owner = PlayerProfile.Real(UUID(0L, 1L), "owner")
+
+        val failing = backing.launchJob(parcel.stripe) { throw AssertionError("job error") }
+        failing.join()
+        assertTrue(failing.isCancelled)
+
+        val following = backing.launchJob(parcel.stripe) { setParcelOwner(parcel, owner) }
+        following.join()
+        assertFalse("The write after the error failed", following.isCancelled)
+        assertEquals(owner.uuid, backing.launchFuture { readParcelData(parcel) }.await()?.owner?.uuid)
+    }
+
+}
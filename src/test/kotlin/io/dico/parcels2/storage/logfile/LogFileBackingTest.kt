@@ -0,0 +1,169 @@
+package io.dico.parcels2.storage.logfile
+
+import io.dico.parcels2.*
+import io.dico.parcels2.storage.Backing
+import io.dico.parcels2.storage.DataPair
+import kotlinx.coroutines.channels.toList
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.util.UUID
+
+/**
+ * Restarts [LogFileBacking] on the same directory, checking that its state is restored from the log and the snapshot.
+ */
+class LogFileBackingTest {
+    @get:Rule
+    val folder = TemporaryFolder()
+
+    private lateinit var directory: File
+    private val logFile get() = File(directory, "journal.log")
+    private val snapshotFile get() = File(directory, "snapshot.bin")
+    private var backing: LogFileBacking? = null
+
+    private val world = ParcelWorldId("world")
+    private val parcel = ParcelId(world, 3, -7)
+    private val owner = PlayerProfile.Real(UUID(1L, 1L), "owner")
+    private val player = PlayerProfile.Real(UUID(2L, 2L), "player")
+
+    @Before
+    fun init() {
+        directory = folder.newFolder("logfile")
+    }
+
+    @After
+    fun shutdown() {
+        backing?.shutdown()
+    }
+
+    private fun restart(compactThresholdBytes: Long = Long.MAX_VALUE): LogFileBacking {
+        backing?.shutdown()
+        return LogFileBacking(directory, 10, compactThresholdBytes, 16).also {
+            backing = it
+            it.init()
+        }
+    }
+
+    private fun <T> LogFileBacking.query(future: Backing.() -> T): T = runBlocking { launchFuture(future).await() }
+
+    private fun LogFileBacking.write(job: Backing.() -> Unit) = runBlocking {
+        val completion = launchJob(job)
+        completion.join()
+        assertFalse("The write failed", completion.isCancelled)
+    }
+
+    private fun LogFileBacking.writeSome() {
+        write {
+            updatePlayerName(owner.uuid, "owner")
+            setParcelData(parcel, ParcelDataHolder().apply {
+                owner = this@LogFileBackingTest.owner
+                setRawStoredPrivilege(player, Privilege.CAN_BUILD)
+            })
+            setGlobalPrivilege(owner, player, Privilege.BANNED)
+        }
+    }
+
+    private fun LogFileBacking.assertWritten() {
+        val data = query { readParcelData(parcel) }!!
+        assertEquals(owner.uuid, data.owner?.uuid)
+        assertEquals(Privilege.CAN_BUILD, data.getRawStoredPrivilege(player))
+        assertEquals(Privilege.BANNED, query { readGlobalPrivileges(owner) }!!.getRawStoredPrivilege(player))
+        assertEquals(owner.uuid, query { getPlayerUuidForName("owner") })
+    }
+
+    private fun appendToLog(write: DataOutputStream.() -> Unit) {
+        DataOutputStream(FileOutputStream(logFile, true)).use { it.write() }
+    }
+
+    @Test
+    fun writesAreReplayedAfterRestart() {
+        restart().writeSome()
+
+        val backing = restart()
+        backing.assertWritten()
+
+        backing.write { setParcelOwner(parcel, player) }
+        assertEquals(player.uuid, restart().query { readParcelData(parcel) }!!.owner?.uuid)
+    }
+
+    @Test
+    fun tornRecordIsDiscarded() {
+        restart().writeSome()
+        backing!!.shutdown()
+        backing = null
+        val validLength = logFile.length()
+
+        // a record whose length is written, but whose checksum and content are not
+        appendToLog { writeInt(64); writeShort(0) }
+
+        val backing = restart()
+        backing.assertWritten()
+        assertEquals(validLength, logFile.length())
+
+        // records written after the discarded tail are replayed
+        backing.write { setParcelOwnerSignOutdated(parcel, true) }
+        assertTrue(restart().query { readParcelData(parcel) }!!.isOwnerSignOutdated)
+    }
+
+    @Test
+    fun recordWithBadChecksumIsDiscarded() {
+        restart().writeSome()
+        backing!!.shutdown()
+        backing = null
+        val validLength = logFile.length()
+
+        appendToLog { writeInt(4); writeInt(0); writeInt(-1) }
+
+        val backing = restart()
+        backing.assertWritten()
+        assertEquals(validLength, logFile.length())
+
+        backing.write { setParcelOwnerSignOutdated(parcel, true) }
+        assertTrue(restart().query { readParcelData(parcel) }!!.isOwnerSignOutdated)
+    }
+
+    @Test
+    fun compactionKeepsState() {
+        val parcels = (0 until 40).map { ParcelId(world, it, -it) }
+
+        // every sync compacts the log into the snapshot
+        val compacting = restart(compactThresholdBytes = 1)
+        compacting.writeSome()
+        for (parcel in parcels) {
+            compacting.write { setParcelOwner(parcel, player) }
+        }
+        compacting.shutdown()
+        backing = null
+        assertTrue(snapshotFile.exists())
+        assertEquals(0L, logFile.length())
+
+        // records appended to the log after the compaction are replayed on top of the snapshot
+        val backing = restart()
+        backing.assertWritten()
+        backing.write {
+            setParcelOwner(parcels[0], owner)
+            setLocalPrivilege(parcel, player, Privilege.DEFAULT)
+        }
+        assertTrue(logFile.length() > 0)
+
+        val restarted = restart()
+        assertEquals(owner.uuid, restarted.query { readParcelData(parcels[0]) }!!.owner?.uuid)
+        assertEquals(Privilege.DEFAULT, restarted.query { readParcelData(parcel) }!!.getRawStoredPrivilege(player))
+        assertEquals(Privilege.BANNED, restarted.query { readGlobalPrivileges(owner) }!!.getRawStoredPrivilege(player))
+
+        // more parcels than the channel holds are transmitted
+        val transmitted = runBlocking { restarted.openChannel<DataPair> { transmitAllParcelData(it) }.toList() }
+        assertEquals((parcels + parcel).toSet(), transmitted.map { it.first }.toSet())
+        for (id in parcels.drop(1)) {
+            assertEquals(player.uuid, transmitted.first { it.first == id }.second?.owner?.uuid)
+        }
+    }
+
+}